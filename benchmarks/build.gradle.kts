@@ -0,0 +1,35 @@
+plugins {
+    // Same Java and JavaFX setup as the extension
+    id("qupath-conventions")
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+dependencies {
+    implementation(project(":"))
+    implementation(project(":ndpa-core"))
+    // Fake NDPI files written next to the generated corpus
+    implementation(testFixtures(project(":ndpa-core")))
+    implementation(libs.bundles.qupath)
+    implementation(libs.bundles.logging)
+}
+
+// Run with ./gradlew :benchmarks:jmh, optionally with e.g. -PjmhIncludes=NdpaParse to run a subset
+jmh {
+    jmhVersion = "1.37"
+    profilers = listOf("gc")
+    fork = 1
+    warmupIterations = 2
+    iterations = 5
+    jvmArgs = listOf("-Xmx8g")
+    resultFormat = "JSON"
+    if (project.hasProperty("jmhIncludes"))
+        includes = listOf(project.property("jmhIncludes").toString())
+}
+
+// Synthetic corpus for load tests, e.g. ./gradlew :benchmarks:generateCorpus --args="/tmp/slide.ndpi --size 2g --seed 1"
+tasks.register<JavaExec>("generateCorpus") {
+    group = "benchmark"
+    description = "Write a fake NDPI file and a synthetic NDPA file next to it"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "qupath.ext.ndpa.corpus.NdpaCorpusGenerator"
+}
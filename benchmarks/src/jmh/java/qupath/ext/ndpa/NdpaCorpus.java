@@ -0,0 +1,71 @@
+package qupath.ext.ndpa;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import qupath.ext.ndpa.core.FakeNdpiWriter;
+import qupath.ext.ndpa.core.NdpaAnnotation;
+import qupath.ext.ndpa.core.NdpaFastScanner;
+import qupath.ext.ndpa.core.NdpiImageInfo;
+import qupath.ext.ndpa.corpus.NdpaCorpusGenerator;
+
+/**
+ * Synthetic NDPA file shared by the benchmarks, written once per trial.
+ * <p>
+ * The size is given as annotations x vertices per annotation, from many small outlines
+ * to a few very dense ones.
+ */
+@State(Scope.Benchmark)
+public class NdpaCorpus {
+
+    // Slide geometry the annotations are mapped onto, no real slide is needed
+    static final NdpiImageInfo IMAGE_INFO = FakeNdpiWriter.DEFAULT_IMAGE_INFO;
+
+    private static final long SEED = 42;
+
+    @Param({"1000x10", "1000x1000", "100000x10", "1000000x10", "10x1000000"})
+    public String size;
+
+    Path file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String[] parts = size.split("x");
+        int nAnnotations = Integer.parseInt(parts[0]);
+        int nVertices = Integer.parseInt(parts[1]);
+        file = Files.createTempFile("ndpa-benchmark-" + size, ".ndpa");
+        // Freehand outlines only, with exactly the requested number of vertices
+        new NdpaCorpusGenerator(SEED, IMAGE_INFO)
+                .setMixture(1, 0, 0, 0, 0)
+                .setVertices(nVertices, nVertices)
+                .write(file, nAnnotations, Long.MAX_VALUE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Read all the annotations of the corpus into memory.
+     */
+    List<NdpaAnnotation> readAnnotations() throws IOException {
+        List<NdpaAnnotation> annotations = new ArrayList<>();
+        try (NdpaFastScanner scanner = new NdpaFastScanner(file)) {
+            NdpaAnnotation annotation;
+            while ((annotation = scanner.next()) != null)
+                annotations.add(annotation);
+        }
+        return annotations;
+    }
+}
@@ -0,0 +1,46 @@
+package qupath.ext.ndpa;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import qupath.ext.ndpa.core.NdpaAnnotation;
+import qupath.ext.ndpa.core.NdpaTransform;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+
+/**
+ * Preparing the geometries of annotations for export (simplify, then refine areas).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NdpaExportGeometryBenchmark {
+
+    private List<PathObject> pathObjects;
+
+    @Setup(Level.Trial)
+    public void setup(NdpaCorpus corpus) throws IOException {
+        NdpaTransform transform = NdpaCorpus.IMAGE_INFO.createTransform(false);
+        pathObjects = new ArrayList<>();
+        for (NdpaAnnotation annotation : corpus.readAnnotations())
+            pathObjects.add(PathObjects.createAnnotationObject(NdpaTools.createROI(annotation, transform)));
+    }
+
+    @Benchmark
+    public void getExportPolygons(Blackhole blackhole) {
+        for (PathObject pathObject : pathObjects)
+            blackhole.consume(NdpaTools.getExportPolygons(pathObject));
+    }
+}
@@ -0,0 +1,53 @@
+package qupath.ext.ndpa;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import qupath.ext.ndpa.core.NdpaAnnotation;
+import qupath.ext.ndpa.core.NdpaFastScanner;
+import qupath.ext.ndpa.core.NdpaReader;
+
+/**
+ * Parsing an NDPA file into annotations, with the fast scanner or the XML parser.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NdpaParseBenchmark {
+
+    @Param({"fast", "stax"})
+    public String parser;
+
+    @Benchmark
+    public long parse(NdpaCorpus corpus, Blackhole blackhole) throws IOException {
+        long nPoints = 0;
+        NdpaAnnotation annotation;
+        if ("fast".equals(parser)) {
+            try (NdpaFastScanner scanner = new NdpaFastScanner(corpus.file)) {
+                while ((annotation = scanner.next()) != null) {
+                    blackhole.consume(annotation);
+                    nPoints += annotation.getNumPoints();
+                }
+            }
+        } else {
+            try (NdpaReader reader = new NdpaReader(new BufferedInputStream(Files.newInputStream(corpus.file)))) {
+                while ((annotation = reader.next()) != null) {
+                    blackhole.consume(annotation);
+                    nPoints += annotation.getNumPoints();
+                }
+            }
+        }
+        return nPoints;
+    }
+}
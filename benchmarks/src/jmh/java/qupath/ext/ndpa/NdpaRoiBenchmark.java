@@ -0,0 +1,42 @@
+package qupath.ext.ndpa;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import qupath.ext.ndpa.core.NdpaAnnotation;
+import qupath.ext.ndpa.core.NdpaTransform;
+
+/**
+ * Building ROIs from annotations that have already been parsed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NdpaRoiBenchmark {
+
+    private List<NdpaAnnotation> annotations;
+    private NdpaTransform transform;
+
+    @Setup(Level.Trial)
+    public void setup(NdpaCorpus corpus) throws IOException {
+        annotations = corpus.readAnnotations();
+        transform = NdpaCorpus.IMAGE_INFO.createTransform(false);
+    }
+
+    @Benchmark
+    public void createROIs(Blackhole blackhole) {
+        for (NdpaAnnotation annotation : annotations)
+            blackhole.consume(NdpaTools.createROI(annotation, transform));
+    }
+}
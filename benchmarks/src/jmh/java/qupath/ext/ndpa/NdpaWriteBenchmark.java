@@ -0,0 +1,61 @@
+package qupath.ext.ndpa;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import qupath.ext.ndpa.core.NdpaAnnotation;
+import qupath.ext.ndpa.core.NdpaWriter;
+
+/**
+ * Serialising annotations to NDPA XML, with the coordinates already in nanometres.
+ * The output is discarded, so only the formatting and encoding are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NdpaWriteBenchmark {
+
+    private List<NdpaAnnotation> annotations;
+    private long[][] x;
+    private long[][] y;
+
+    @Setup(Level.Trial)
+    public void setup(NdpaCorpus corpus) throws IOException {
+        annotations = corpus.readAnnotations();
+        int n = annotations.size();
+        x = new long[n][];
+        y = new long[n][];
+        for (int i = 0; i < n; i++) {
+            double[] xs = annotations.get(i).getX();
+            double[] ys = annotations.get(i).getY();
+            x[i] = new long[xs.length];
+            y[i] = new long[ys.length];
+            for (int j = 0; j < xs.length; j++) {
+                x[i][j] = (long) xs[j];
+                y[i][j] = (long) ys[j];
+            }
+        }
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        try (NdpaWriter writer = new NdpaWriter(OutputStream.nullOutputStream(), 0, 0)) {
+            for (int i = 0; i < x.length; i++) {
+                NdpaAnnotation annotation = annotations.get(i);
+                writer.writeFreehand(annotation.getTitle(), annotation.getDetails(), annotation.getColor(), x[i], y[i], x[i].length);
+            }
+            return writer.getCount();
+        }
+    }
+}
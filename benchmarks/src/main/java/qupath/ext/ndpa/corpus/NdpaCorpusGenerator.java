@@ -0,0 +1,307 @@
+package qupath.ext.ndpa.corpus;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+import qupath.ext.ndpa.core.FakeNdpiWriter;
+import qupath.ext.ndpa.core.NdpaAnnotation;
+import qupath.ext.ndpa.core.NdpaWriter;
+import qupath.ext.ndpa.core.NdpiImageInfo;
+
+/**
+ * Deterministic generator of synthetic NDPA files, for benchmarks and load tests.
+ * <p>
+ * The same seed and settings always give the same file. Annotations are a mixture of dense freehand outlines,
+ * rectangles, circles, pins and rulers, spread over the image described by an {@link NdpiImageInfo},
+ * and are written with the same {@link NdpaWriter} as the extension so they can be read back by it.
+ * Files are streamed to disk, so they can be several GB.
+ * <pre>
+ * NdpaCorpusGenerator slide.ndpi [--seed S] [--annotations N] [--size 2g] [--vertices MIN:MAX] [--special-characters]
+ * </pre>
+ * writes a fake {@code slide.ndpi} (see {@link FakeNdpiWriter}) and the matching {@code slide.ndpi.ndpa}.
+ */
+public class NdpaCorpusGenerator {
+
+    private static final String[] COLORS = { "#ff0000", "#00ff00", "#0000ff", "#ffff00", "#00ffff", "#ff00ff", "#000000" };
+
+    // Titles exercising the XML escaping, and the fallback from the fast scanner to the XML parser
+    private static final String[] SPECIAL_TITLES = { "Tumour & stroma", "<5% necrosis", "\"Margin\"", "R\u00e9gion d'int\u00e9r\u00eat" };
+
+    private final long seed;
+    private final NdpiImageInfo imageInfo;
+
+    private double freehandWeight = 0.4;
+    private double rectangleWeight = 0.1;
+    private double circleWeight = 0.15;
+    private double pinWeight = 0.25;
+    private double rulerWeight = 0.1;
+    private int minVertices = 50;
+    private int maxVertices = 2000;
+    private boolean specialCharacters = false;
+
+    /**
+     * Create a generator.
+     *
+     * @param seed the random seed
+     * @param imageInfo the image the annotations are placed on
+     */
+    public NdpaCorpusGenerator(long seed, NdpiImageInfo imageInfo) {
+        this.seed = seed;
+        this.imageInfo = imageInfo;
+    }
+
+    /**
+     * Set the relative proportions of each type of annotation.
+     *
+     * @param freehand freehand outlines
+     * @param rectangle rectangles (freehand with the rectangle special type)
+     * @param circle circles
+     * @param pin pins
+     * @param ruler linear measurements
+     * @return this generator
+     */
+    public NdpaCorpusGenerator setMixture(double freehand, double rectangle, double circle, double pin, double ruler) {
+        double total = freehand + rectangle + circle + pin + ruler;
+        if (!(total > 0))
+            throw new IllegalArgumentException("At least one annotation type must have a positive weight");
+        this.freehandWeight = freehand / total;
+        this.rectangleWeight = rectangle / total;
+        this.circleWeight = circle / total;
+        this.pinWeight = pin / total;
+        this.rulerWeight = ruler / total;
+        return this;
+    }
+
+    /**
+     * Set the range of the number of vertices of freehand outlines. Values are drawn log-uniformly,
+     * so that most outlines are small with a few very dense ones.
+     *
+     * @param min the minimum number of vertices (at least 3)
+     * @param max the maximum number of vertices
+     * @return this generator
+     */
+    public NdpaCorpusGenerator setVertices(int min, int max) {
+        if (min < 3 || max < min)
+            throw new IllegalArgumentException("Invalid vertex range: " + min + ":" + max);
+        this.minVertices = min;
+        this.maxVertices = max;
+        return this;
+    }
+
+    /**
+     * Use titles with characters that need escaping (and make the fast scanner fall back to the XML parser).
+     *
+     * @param specialCharacters true to use special characters in some titles
+     * @return this generator
+     */
+    public NdpaCorpusGenerator setSpecialCharacters(boolean specialCharacters) {
+        this.specialCharacters = specialCharacters;
+        return this;
+    }
+
+    /**
+     * Write an NDPA file, stopping at whichever limit is reached first.
+     *
+     * @param file the NDPA file
+     * @param maxAnnotations the maximum number of annotations
+     * @param targetBytes the approximate maximum size of the file
+     * @return the number of annotations written
+     * @throws IOException if the file could not be written
+     */
+    public long write(Path file, long maxAnnotations, long targetBytes) throws IOException {
+        try (CountingOutputStream stream = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            return write(stream, maxAnnotations, targetBytes);
+        }
+    }
+
+    /**
+     * Write an NDPA document to a stream, stopping at whichever limit is reached first.
+     * The stream is closed when done.
+     *
+     * @param stream the output stream
+     * @param maxAnnotations the maximum number of annotations
+     * @param targetBytes the approximate maximum size of the document
+     * @return the number of annotations written
+     * @throws IOException if the document could not be written
+     */
+    public long write(OutputStream stream, long maxAnnotations, long targetBytes) throws IOException {
+        CountingOutputStream counter = stream instanceof CountingOutputStream c ? c : new CountingOutputStream(stream);
+        SplittableRandom random = new SplittableRandom(seed);
+
+        // Extent of the image in NDPA coordinates (nanometres from the slide centre)
+        double widthNm = imageInfo.getWidth() * imageInfo.getPixelWidthNm();
+        double heightNm = imageInfo.getHeight() * imageInfo.getPixelHeightNm();
+        double minX = (Double.isNaN(imageInfo.getXOffsetNm()) ? 0 : imageInfo.getXOffsetNm()) - widthNm / 2;
+        double minY = (Double.isNaN(imageInfo.getYOffsetNm()) ? 0 : imageInfo.getYOffsetNm()) - heightNm / 2;
+        // Typical object size, a fraction of the image
+        double scale = Math.min(widthNm, heightNm) / 50;
+
+        long count = 0;
+        try (NdpaWriter writer = new NdpaWriter(counter, (int) (imageInfo.getWidth() / 2), (int) (imageInfo.getHeight() / 2))) {
+            while (count < maxAnnotations && counter.getCount() < targetBytes) {
+                double size = scale * (0.1 + random.nextDouble());
+                double cx = minX + size + random.nextDouble() * Math.max(widthNm - 2 * size, 0);
+                double cy = minY + size + random.nextDouble() * Math.max(heightNm - 2 * size, 0);
+                writer.writeAnnotation(createAnnotation(random, count, cx, cy, size));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private NdpaAnnotation createAnnotation(SplittableRandom random, long index, double cx, double cy, double size) {
+        String color = COLORS[random.nextInt(COLORS.length)];
+        String title = specialCharacters && random.nextInt(20) == 0
+                ? SPECIAL_TITLES[random.nextInt(SPECIAL_TITLES.length)]
+                : "Annotation " + (index + 1);
+        String details = random.nextInt(4) == 0 ? "Generated with seed " + seed : "";
+
+        double type = random.nextDouble();
+        if ((type -= freehandWeight) < 0)
+            return createFreehand(random, title, details, color, cx, cy, size);
+        if ((type -= rectangleWeight) < 0) {
+            double w = size * (0.5 + random.nextDouble());
+            double h = size * (0.5 + random.nextDouble());
+            double[] x = { cx - w, cx + w, cx + w, cx - w };
+            double[] y = { cy - h, cy - h, cy + h, cy + h };
+            return new NdpaAnnotation(null, title, details, "FREEHAND", color, "rectangle", x, y, Double.NaN);
+        }
+        if ((type -= circleWeight) < 0)
+            return new NdpaAnnotation(null, title, details, "CIRCLE", color, "", new double[] { cx }, new double[] { cy }, size);
+        if ((type -= pinWeight) < 0 || rulerWeight == 0)
+            return new NdpaAnnotation(null, title, details, "PIN", color, "", new double[] { cx }, new double[] { cy }, Double.NaN);
+        double theta = random.nextDouble() * 2 * Math.PI;
+        double[] x = { cx - size * Math.cos(theta), cx + size * Math.cos(theta) };
+        double[] y = { cy - size * Math.sin(theta), cy + size * Math.sin(theta) };
+        return new NdpaAnnotation(null, title, details, "LINEARMEASURE", color, "", x, y, Double.NaN);
+    }
+
+    /**
+     * Create a closed outline with a wobbly boundary. The radius only depends on the angle, so the outline
+     * never intersects itself.
+     */
+    private NdpaAnnotation createFreehand(SplittableRandom random, String title, String details, String color,
+                                          double cx, double cy, double size) {
+        int n = minVertices == maxVertices ? minVertices
+                : (int) Math.round(Math.exp(Math.log(minVertices) + random.nextDouble() * (Math.log(maxVertices) - Math.log(minVertices))));
+
+        // A few low frequency harmonics with random amplitudes and phases
+        int nHarmonics = 4;
+        double[] amplitudes = new double[nHarmonics];
+        double[] phases = new double[nHarmonics];
+        for (int k = 0; k < nHarmonics; k++) {
+            amplitudes[k] = random.nextDouble() * 0.3 / (k + 1);
+            phases[k] = random.nextDouble() * 2 * Math.PI;
+        }
+
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            double theta = 2 * Math.PI * i / n;
+            double r = 1;
+            for (int k = 0; k < nHarmonics; k++)
+                r += amplitudes[k] * Math.sin((k + 2) * theta + phases[k]);
+            // Fine grained noise, as in hand-drawn outlines
+            r += (random.nextDouble() - 0.5) * 0.02;
+            x[i] = cx + size * r * Math.cos(theta);
+            y[i] = cy + size * r * Math.sin(theta);
+        }
+        return new NdpaAnnotation(null, title, details, "FREEHAND", color, "", x, y, Double.NaN);
+    }
+
+    /**
+     * Parse a size such as 500k, 20m or 2g.
+     *
+     * @param size the size
+     * @return the number of bytes
+     */
+    static long parseSize(String size) {
+        String s = size.trim().toLowerCase(Locale.ROOT);
+        long multiplier = 1;
+        if (s.endsWith("b"))
+            s = s.substring(0, s.length() - 1);
+        if (s.endsWith("k"))
+            multiplier = 1L << 10;
+        else if (s.endsWith("m"))
+            multiplier = 1L << 20;
+        else if (s.endsWith("g"))
+            multiplier = 1L << 30;
+        if (multiplier > 1)
+            s = s.substring(0, s.length() - 1);
+        return (long) (Double.parseDouble(s) * multiplier);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: NdpaCorpusGenerator slide.ndpi [--seed S] [--annotations N] [--size 2g] [--vertices MIN:MAX] [--special-characters]");
+            System.exit(2);
+        }
+        Path slide = Path.of(args[0]);
+        long seed = 42;
+        long maxAnnotations = Long.MAX_VALUE;
+        long targetBytes = Long.MAX_VALUE;
+        int minVertices = 50, maxVertices = 2000;
+        boolean specialCharacters = false;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed" -> seed = Long.parseLong(args[++i]);
+                case "--annotations" -> maxAnnotations = Long.parseLong(args[++i]);
+                case "--size" -> targetBytes = parseSize(args[++i]);
+                case "--vertices" -> {
+                    String[] range = args[++i].split(":");
+                    minVertices = Integer.parseInt(range[0]);
+                    maxVertices = Integer.parseInt(range[range.length - 1]);
+                }
+                case "--special-characters" -> specialCharacters = true;
+                default -> throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+        if (maxAnnotations == Long.MAX_VALUE && targetBytes == Long.MAX_VALUE)
+            maxAnnotations = 10_000;
+
+        NdpiImageInfo imageInfo = FakeNdpiWriter.DEFAULT_IMAGE_INFO;
+        FakeNdpiWriter.write(slide, imageInfo);
+        Path ndpa = Path.of(slide + ".ndpa");
+        long startTime = System.currentTimeMillis();
+        long count = new NdpaCorpusGenerator(seed, imageInfo)
+                .setVertices(minVertices, maxVertices)
+                .setSpecialCharacters(specialCharacters)
+                .write(ndpa, maxAnnotations, targetBytes);
+        System.out.printf("Wrote %d annotations (%d bytes) to %s in %d ms%n",
+                count, Files.size(ndpa), ndpa, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Output stream counting the bytes written
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        private long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
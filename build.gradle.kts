@@ -3,6 +3,8 @@ plugins {
     id("com.gradleup.shadow") version "8.3.5"
     // QuPath Gradle extension convention plugin
     id("qupath-conventions")
+    // Fake NDPI image server, so that tests run without real slides
+    `java-test-fixtures`
 }
 
 // Get version from Environment Variable (GitHub Actions) or fallback to VERSION file
@@ -25,6 +27,12 @@ qupathExtension {
     automaticModule = "io.github.qupath.extension.ndpa"
 }
 
+// Modules of this build that are bundled in the extension jar
+val bundled: Configuration by configurations.creating
+configurations.compileOnly { extendsFrom(bundled) }
+configurations.testImplementation { extendsFrom(bundled) }
+configurations.testFixturesImplementation { extendsFrom(bundled) }
+
 // TODO: Define your dependencies here
 dependencies {
 
@@ -36,7 +44,34 @@ dependencies {
     // For testing
     testImplementation(libs.bundles.qupath)
     testImplementation(libs.junit)
+    testFixturesImplementation(libs.bundles.qupath)
+    testFixturesApi(testFixtures(project(":ndpa-core")))
 
     implementation("io.github.qupath:qupath-extension-openslide:0.7.0")
 
+    // Bundled in the extension jar
+    bundled(project(":ndpa-core"))
+
+}
+
+// The classes of ndpa-core are copied into the extension jars (plain and shadow) rather than being a dependency,
+// so that the jar can be installed on its own and the published POM doesn't refer to an unpublished module
+tasks.jar {
+    from(bundled.elements.map { jars -> jars.map { zipTree(it.asFile) } }) { exclude("META-INF/MANIFEST.MF") }
+}
+tasks.shadowJar {
+    from(bundled.elements.map { jars -> jars.map { zipTree(it.asFile) } }) { exclude("META-INF/MANIFEST.MF") }
+}
+
+// The test fixtures are not part of the published extension
+val javaComponent = components["java"] as AdhocComponentWithVariants
+javaComponent.withVariantsFromConfiguration(configurations["testFixturesApiElements"]) { skip() }
+javaComponent.withVariantsFromConfiguration(configurations["testFixturesRuntimeElements"]) { skip() }
+
+// Headless NDPA <-> GeoJSON conversion, e.g. ./gradlew ndpaCli --args="to-geojson --threads 8 /data/slides"
+tasks.register<JavaExec>("ndpaCli") {
+    group = "application"
+    description = "Convert NDPA files to GeoJSON and back, without the QuPath GUI"
+    classpath = sourceSets["main"].runtimeClasspath + configurations["shadow"] + bundled
+    mainClass = "qupath.ext.ndpa.NdpaCli"
 }
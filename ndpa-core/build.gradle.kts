@@ -0,0 +1,25 @@
+plugins {
+    // Plain Java library: no QuPath, JavaFX or OpenSlide dependencies
+    `java-library`
+    // Fake NDPI files for the tests of this module, the extension and the benchmarks
+    `java-test-fixtures`
+}
+
+java {
+    toolchain {
+        languageVersion = JavaLanguageVersion.of(21)
+    }
+}
+
+repositories {
+    mavenCentral()
+}
+
+dependencies {
+    testImplementation(libs.junit)
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+}
+
+tasks.test {
+    useJUnitPlatform()
+}
@@ -0,0 +1,128 @@
+package qupath.ext.ndpa.core;
+
+import java.util.Objects;
+
+/**
+ * A single NDPA annotation, as found in one {@code ndpviewstate} element.
+ * <p>
+ * Coordinates are kept in the NDPA reference frame (nanometres from the slide centre),
+ * it is up to the caller to convert them to pixels.
+ */
+public class NdpaAnnotation {
+
+    private final String id;
+    private final String title;
+    private final String details;
+    private final String type;
+    private final String color;
+    private final String specialType;
+    private final double[] x;
+    private final double[] y;
+    private final double radius;
+
+    /**
+     * Create a new annotation.
+     *
+     * @param id the ndpviewstate id (may be null)
+     * @param title the annotation title
+     * @param details the annotation details
+     * @param type the annotation type, e.g. FREEHAND, CIRCLE, PIN or LINEARMEASURE
+     * @param color the annotation colour, as #RRGGBB
+     * @param specialType the special type (e.g. rectangle), or an empty string
+     * @param x the x coordinates in nanometres
+     * @param y the y coordinates in nanometres
+     * @param radius the radius in nanometres (circles only, NaN otherwise)
+     */
+    public NdpaAnnotation(String id, String title, String details, String type, String color,
+                          String specialType, double[] x, double[] y, double radius) {
+        this.id = id;
+        this.title = title;
+        this.details = details;
+        this.type = type;
+        this.color = color;
+        this.specialType = specialType;
+        this.x = x;
+        this.y = y;
+        this.radius = radius;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getDetails() {
+        return details;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getColor() {
+        return color;
+    }
+
+    public String getSpecialType() {
+        return specialType;
+    }
+
+    /**
+     * @return the number of points in the annotation
+     */
+    public int getNumPoints() {
+        return x.length;
+    }
+
+    /**
+     * @return the x coordinates in nanometres (not copied, do not modify)
+     */
+    public double[] getX() {
+        return x;
+    }
+
+    /**
+     * @return the y coordinates in nanometres (not copied, do not modify)
+     */
+    public double[] getY() {
+        return y;
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    /**
+     * Get a 64-bit hash of everything describing the annotation except its id, i.e. the title, details, type,
+     * colour, special type, coordinates and radius. Annotations with the same content hash create the same object.
+     *
+     * @return the content hash
+     */
+    public long getContentHash() {
+        long hash = mix(0, Objects.hashCode(title));
+        hash = mix(hash, Objects.hashCode(details));
+        hash = mix(hash, Objects.hashCode(type));
+        hash = mix(hash, Objects.hashCode(color));
+        hash = mix(hash, Objects.hashCode(specialType));
+        hash = mix(hash, Double.doubleToLongBits(radius));
+        hash = mix(hash, x.length);
+        for (int i = 0; i < x.length; i++) {
+            hash = mix(hash, Double.doubleToLongBits(x[i]));
+            hash = mix(hash, Double.doubleToLongBits(y[i]));
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 32);
+    }
+
+    @Override
+    public String toString() {
+        return "NdpaAnnotation[" + id + ", " + type + ", " + title + ", " + color + ", " + x.length + " points]";
+    }
+}
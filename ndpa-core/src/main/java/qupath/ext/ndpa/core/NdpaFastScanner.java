@@ -0,0 +1,607 @@
+package qupath.ext.ndpa.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Fast byte-level scanner for NDPA files.
+ * <p>
+ * The file is read through a fixed-size window rather than mapped, so that it isn't held open
+ * (and locked, on Windows) once the scanner is closed, and large files don't need to fit in memory.
+ * <p>
+ * NDPA files are very regular, so instead of going through a general XML parser the scanner looks for the
+ * few elements it needs ({@code ndpviewstate}, {@code annotation}, {@code pointlist}...) and parses the
+ * integer nanometre coordinates straight from the bytes, without creating any String.
+ * Only titles, details and attributes are decoded, with the predefined entities, character references and
+ * line ends handled as an XML parser would.
+ * <p>
+ * Anything the scanner doesn't expect (another encoding, CDATA sections, entities declared in a DTD,
+ * non-integer coordinates, files over 2 GB...) makes it throw an {@link IOException}, in which case
+ * the file should be read again with the general {@link NdpaReader}.
+ * <p>
+ * {@link #next()} has the same contract as {@link NdpaReader#next()}.
+ */
+public class NdpaFastScanner implements Closeable {
+
+    private static final byte[][] NAMES = {
+            bytes("ndpviewstate"), bytes("title"), bytes("details"), bytes("annotation"),
+            bytes("pointlist"), bytes("point"), bytes("x"), bytes("y"),
+            bytes("x1"), bytes("y1"), bytes("x2"), bytes("y2"), bytes("radius")
+    };
+    private static final int NDPVIEWSTATE = 0, TITLE = 1, DETAILS = 2, ANNOTATION = 3, POINTLIST = 4, POINT = 5,
+            X = 6, Y = 7, X1 = 8, Y1 = 9, X2 = 10, Y2 = 11, RADIUS = 12;
+
+    // Returned by nextTag() for elements we don't care about, end tags and the end of the file
+    private static final int OTHER = -1, END = -2, EOF = -3;
+
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']*)[\"']");
+
+    // More digits than this could overflow a long
+    private static final int MAX_DIGITS = 18;
+
+    // Size of the window of the file held in memory
+    private static final int WINDOW_SIZE = 1 << 20;
+
+    // How far back the window starts from the current position, so that short look-behinds don't read the file again
+    private static final int WINDOW_BACKTRACK = 4096;
+
+    private final FileChannel channel;
+    private final int limit;
+    private int pos;
+
+    // The bytes of the file from windowStart, windowLength of them
+    private final byte[] window;
+    private int windowStart;
+    private int windowLength;
+
+    // Depth of the elements outside any ndpviewstate
+    private int depth;
+
+    // State of the last tag read by nextTag()
+    private boolean selfClosing;
+    private String attrId, attrType, attrColor, attrSpecialType;
+
+    // Reusable buffers for the points and the decoded text
+    private double[] bufferX = new double[256];
+    private double[] bufferY = new double[256];
+    private byte[] textBuffer = new byte[256];
+
+    /**
+     * Open an NDPA file.
+     *
+     * @param path the NDPA file
+     * @throws IOException if the file could not be read, is too large or is not UTF-8
+     */
+    public NdpaFastScanner(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large for the fast scanner: " + path);
+            this.limit = (int) size;
+            this.window = new byte[(int) Math.min(size, WINDOW_SIZE)];
+            checkProlog();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the number of bytes scanned so far
+     */
+    public long getPosition() {
+        return pos;
+    }
+
+    /**
+     * Read the next annotation.
+     *
+     * @return the next annotation, or null if the end of the file was reached
+     * @throws IOException if the file is not what the scanner expects
+     */
+    public NdpaAnnotation next() throws IOException {
+        while (true) {
+            int element = nextTag();
+            if (element == EOF) {
+                if (depth != 0)
+                    throw unexpected("end of file");
+                return null;
+            }
+            if (element == END) {
+                if (--depth < 0)
+                    throw unexpected("end tag");
+                continue;
+            }
+            if (element == NDPVIEWSTATE)
+                return readViewState();
+            if (!selfClosing)
+                depth++;
+        }
+    }
+
+    private NdpaAnnotation readViewState() throws IOException {
+        String id = attrId;
+        String title = "";
+        String details = "";
+        String type = "";
+        String color = "";
+        String specialType = "";
+
+        double x = Double.NaN, y = Double.NaN, radius = Double.NaN;
+        double x1 = Double.NaN, y1 = Double.NaN, x2 = Double.NaN, y2 = Double.NaN;
+        int nPoints = 0;
+
+        if (!selfClosing) {
+            int element;
+            while ((element = nextChild()) != END) {
+                switch (element) {
+                    case TITLE -> title = readText();
+                    case DETAILS -> details = readText();
+                    case ANNOTATION -> {
+                        type = attrType.toUpperCase();
+                        color = attrColor.toUpperCase();
+                        specialType = attrSpecialType;
+                        if (selfClosing)
+                            continue;
+                        int child;
+                        while ((child = nextChild()) != END) {
+                            switch (child) {
+                                case X -> x = readNumber();
+                                case Y -> y = readNumber();
+                                case X1 -> x1 = readNumber();
+                                case Y1 -> y1 = readNumber();
+                                case X2 -> x2 = readNumber();
+                                case Y2 -> y2 = readNumber();
+                                case RADIUS -> radius = readNumber();
+                                case POINTLIST -> nPoints = readPointList(nPoints);
+                                default -> skipElement();
+                            }
+                        }
+                    }
+                    default -> skipElement();
+                }
+            }
+        }
+
+        double[] xs, ys;
+        if ("FREEHAND".equals(type)) {
+            xs = Arrays.copyOf(bufferX, nPoints);
+            ys = Arrays.copyOf(bufferY, nPoints);
+        } else if ("LINEARMEASURE".equals(type)) {
+            xs = new double[] { x1, x2 };
+            ys = new double[] { y1, y2 };
+        } else {
+            xs = new double[] { x };
+            ys = new double[] { y };
+        }
+        return new NdpaAnnotation(id, title, details, type, color, specialType, xs, ys, radius);
+    }
+
+    private int readPointList(int nPoints) throws IOException {
+        if (selfClosing)
+            return nPoints;
+        int element;
+        while ((element = nextChild()) != END) {
+            if (element != POINT) {
+                skipElement();
+                continue;
+            }
+            double pointX = Double.NaN, pointY = Double.NaN;
+            if (!selfClosing) {
+                int child;
+                while ((child = nextChild()) != END) {
+                    switch (child) {
+                        case X -> pointX = readNumber();
+                        case Y -> pointY = readNumber();
+                        default -> skipElement();
+                    }
+                }
+            }
+            if (nPoints == bufferX.length) {
+                bufferX = Arrays.copyOf(bufferX, nPoints * 2);
+                bufferY = Arrays.copyOf(bufferY, nPoints * 2);
+            }
+            bufferX[nPoints] = pointX;
+            bufferY[nPoints] = pointY;
+            nPoints++;
+        }
+        return nPoints;
+    }
+
+    /**
+     * Read the next tag inside an element, which must not reach the end of the file
+     */
+    private int nextChild() throws IOException {
+        int element = nextTag();
+        if (element == EOF)
+            throw unexpected("end of file");
+        return element;
+    }
+
+    /**
+     * Skip the content of the element whose start tag was just read
+     */
+    private void skipElement() throws IOException {
+        if (selfClosing)
+            return;
+        int level = 1;
+        while (level > 0) {
+            int element = nextChild();
+            if (element == END)
+                level--;
+            else if (!selfClosing)
+                level++;
+        }
+    }
+
+    /**
+     * Read the text of the element whose start tag was just read, up to its end tag
+     */
+    private String readText() throws IOException {
+        if (selfClosing)
+            return "";
+        int start = pos;
+        int end = indexOf('<', start);
+        if (end < 0 || end + 1 >= limit || byteAt(end + 1) != '/')
+            throw unexpected("content");
+        // Trim the same way as String.trim()
+        while (start < end && (byteAt(start) & 0xFF) <= ' ')
+            start++;
+        int trimmed = end;
+        while (trimmed > start && (byteAt(trimmed - 1) & 0xFF) <= ' ')
+            trimmed--;
+        // References may decode to whitespace, which the XML parser would trim too
+        String text = decode(start, trimmed, false).trim();
+        pos = end;
+        if (nextChild() != END)
+            throw unexpected("content");
+        return text;
+    }
+
+    /**
+     * Parse an integer from the text of the element whose start tag was just read, up to its end tag
+     */
+    private double readNumber() throws IOException {
+        if (selfClosing)
+            throw unexpected("empty number");
+        skipWhitespace();
+        boolean negative = false;
+        if (pos < limit && (byteAt(pos) == '-' || byteAt(pos) == '+'))
+            negative = byteAt(pos++) == '-';
+        long value = 0;
+        int nDigits = 0;
+        while (pos < limit) {
+            int c = byteAt(pos) - '0';
+            if (c < 0 || c > 9)
+                break;
+            value = value * 10 + c;
+            pos++;
+            if (++nDigits > MAX_DIGITS)
+                throw unexpected("number");
+        }
+        if (nDigits == 0)
+            throw unexpected("number");
+        skipWhitespace();
+        if (pos + 1 >= limit || byteAt(pos) != '<' || byteAt(pos + 1) != '/')
+            throw unexpected("number");
+        if (nextChild() != END)
+            throw unexpected("number");
+        return negative ? -value : value;
+    }
+
+    /**
+     * Move to the next start or end tag, skipping text, comments and processing instructions.
+     * For start tags, the attributes are parsed and the tag is consumed.
+     *
+     * @return the index of the element name, OTHER, END or EOF
+     */
+    private int nextTag() throws IOException {
+        while (true) {
+            int lt = indexOf('<', pos);
+            if (lt < 0) {
+                pos = limit;
+                return EOF;
+            }
+            pos = lt + 1;
+            byte c = get(pos);
+            if (c == '/') {
+                pos++;
+                readName();
+                skipWhitespace();
+                expect('>');
+                return END;
+            } else if (c == '?') {
+                skipPast("?>");
+            } else if (c == '!') {
+                if (!startsWith("!--"))
+                    throw unexpected("markup");
+                skipPast("-->");
+            } else {
+                int element = readName();
+                readAttributes(element);
+                return element;
+            }
+        }
+    }
+
+    private int readName() throws IOException {
+        int start = pos;
+        while (pos < limit) {
+            byte c = byteAt(pos);
+            if (c == '>' || c == '/' || (c & 0xFF) <= ' ')
+                break;
+            if (c == ':' || c == '&')
+                throw unexpected("name");
+            pos++;
+        }
+        if (pos == start)
+            throw unexpected("name");
+        int length = pos - start;
+        for (int i = 0; i < NAMES.length; i++) {
+            byte[] name = NAMES[i];
+            if (name.length == length && regionMatches(start, name))
+                return i;
+        }
+        return OTHER;
+    }
+
+    private void readAttributes(int element) throws IOException {
+        if (element == NDPVIEWSTATE)
+            attrId = null;
+        else if (element == ANNOTATION)
+            attrType = attrColor = attrSpecialType = "";
+        while (true) {
+            skipWhitespace();
+            byte c = get(pos);
+            if (c == '>') {
+                pos++;
+                selfClosing = false;
+                return;
+            }
+            if (c == '/') {
+                pos++;
+                expect('>');
+                selfClosing = true;
+                return;
+            }
+            int nameStart = pos;
+            while (pos < limit && byteAt(pos) != '=' && (byteAt(pos) & 0xFF) > ' ')
+                pos++;
+            int nameEnd = pos;
+            skipWhitespace();
+            expect('=');
+            skipWhitespace();
+            byte quote = get(pos);
+            if (quote != '"' && quote != '\'')
+                throw unexpected("attribute");
+            int valueStart = ++pos;
+            int valueEnd = indexOf(quote, valueStart);
+            if (valueEnd < 0)
+                throw unexpected("end of file");
+            pos = valueEnd + 1;
+
+            if (element == NDPVIEWSTATE && isName(nameStart, nameEnd, "id")) {
+                attrId = decode(valueStart, valueEnd, true);
+            } else if (element == ANNOTATION) {
+                if (isName(nameStart, nameEnd, "type"))
+                    attrType = decode(valueStart, valueEnd, true);
+                else if (isName(nameStart, nameEnd, "color"))
+                    attrColor = decode(valueStart, valueEnd, true);
+                else if (isName(nameStart, nameEnd, "specialtype"))
+                    attrSpecialType = decode(valueStart, valueEnd, true);
+            }
+        }
+    }
+
+    /**
+     * Check that the file is UTF-8 (or ASCII), as the offsets are computed on the raw bytes
+     */
+    private void checkProlog() throws IOException {
+        if (limit >= 3 && (byteAt(0) & 0xFF) == 0xEF && (byteAt(1) & 0xFF) == 0xBB && (byteAt(2) & 0xFF) == 0xBF)
+            pos = 3;
+        skipWhitespace();
+        if (pos < limit && byteAt(pos) != '<')
+            throw unexpected("encoding");
+        if (!startsWith("<?xml"))
+            return;
+        int end = indexOf('>', pos);
+        if (end < 0)
+            throw unexpected("end of file");
+        Matcher matcher = ENCODING.matcher(decode(pos, end, false));
+        if (matcher.find() && !matcher.group(1).equalsIgnoreCase("utf-8"))
+            throw unexpected("encoding " + matcher.group(1));
+    }
+
+    private boolean isName(int start, int end, String name) throws IOException {
+        if (end - start != name.length())
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (byteAt(start + i) != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean regionMatches(int start, byte[] bytes) throws IOException {
+        for (int i = 0; i < bytes.length; i++) {
+            if (byteAt(start + i) != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(String s) throws IOException {
+        return pos + s.length() <= limit && isName(pos, pos + s.length(), s);
+    }
+
+    /**
+     * Decode text or an attribute value.
+     * <p>
+     * Line ends are normalised to '\n', and in attribute values tabs and line ends become spaces,
+     * before the predefined entities and character references are replaced.
+     */
+    private String decode(int start, int end, boolean attribute) throws IOException {
+        int length = end - start;
+        if (length > textBuffer.length)
+            textBuffer = new byte[Math.max(length, textBuffer.length * 2)];
+        copy(start, textBuffer, length);
+        boolean plain = true;
+        for (int i = 0; i < length && plain; i++) {
+            byte c = textBuffer[i];
+            plain = c != '&' && c != '\r' && !(attribute && (c == '\n' || c == '\t'));
+        }
+        String text = new String(textBuffer, 0, length, StandardCharsets.UTF_8);
+        if (plain)
+            return text;
+
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                int semicolon = text.indexOf(';', i + 1);
+                if (semicolon < 0)
+                    throw unexpected("reference");
+                appendReference(sb, text.substring(i + 1, semicolon));
+                i = semicolon;
+            } else if (c == '\r') {
+                if (i + 1 < text.length() && text.charAt(i + 1) == '\n')
+                    i++;
+                sb.append(attribute ? ' ' : '\n');
+            } else if (attribute && (c == '\n' || c == '\t')) {
+                sb.append(' ');
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Append the character of a predefined entity or a character reference, anything else is left to the XML parser
+     */
+    private void appendReference(StringBuilder sb, String name) throws IOException {
+        switch (name) {
+            case "amp" -> sb.append('&');
+            case "lt" -> sb.append('<');
+            case "gt" -> sb.append('>');
+            case "quot" -> sb.append('"');
+            case "apos" -> sb.append('\'');
+            default -> {
+                if (name.length() < 2 || name.charAt(0) != '#')
+                    throw unexpected("reference");
+                try {
+                    int codePoint = name.charAt(1) == 'x'
+                            ? Integer.parseInt(name.substring(2), 16)
+                            : Integer.parseInt(name.substring(1));
+                    sb.appendCodePoint(codePoint);
+                } catch (IllegalArgumentException e) {
+                    throw unexpected("reference");
+                }
+            }
+        }
+    }
+
+    private int indexOf(int b, int from) throws IOException {
+        for (int i = from; i < limit; i++) {
+            if (byteAt(i) == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private void skipPast(String end) throws IOException {
+        while (pos < limit) {
+            if (startsWith(end)) {
+                pos += end.length();
+                return;
+            }
+            pos++;
+        }
+        throw unexpected("end of file");
+    }
+
+    private void skipWhitespace() throws IOException {
+        while (pos < limit && (byteAt(pos) & 0xFF) <= ' ')
+            pos++;
+    }
+
+    private void expect(char c) throws IOException {
+        if (get(pos) != c)
+            throw unexpected("'" + (char) byteAt(pos) + "'");
+        pos++;
+    }
+
+    /**
+     * Get a byte of the file, moving the window if needed
+     */
+    private byte byteAt(int i) throws IOException {
+        int offset = i - windowStart;
+        if (offset < 0 || offset >= windowLength) {
+            fill(i);
+            offset = i - windowStart;
+        }
+        return window[offset];
+    }
+
+    /**
+     * Move the window so that it contains a byte, and a little of what comes before the current position
+     */
+    private void fill(int i) throws IOException {
+        if (i < 0 || i >= limit)
+            throw unexpected("end of file");
+        int start = Math.max(0, Math.min(i, pos) - WINDOW_BACKTRACK);
+        if (i >= start + window.length)
+            start = i;
+        start = Math.min(start, limit - window.length);
+        windowLength = read(start, window, Math.min(window.length, limit - start));
+        windowStart = start;
+    }
+
+    /**
+     * Copy bytes of the file, from the window if it has them
+     */
+    private void copy(int start, byte[] bytes, int length) throws IOException {
+        int offset = start - windowStart;
+        if (offset >= 0 && offset + length <= windowLength)
+            System.arraycopy(window, offset, bytes, 0, length);
+        else
+            read(start, bytes, length);
+    }
+
+    private int read(int position, byte[] bytes, int length) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(bytes, 0, length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0)
+                throw new IOException("File changed while it was being read");
+        }
+        return length;
+    }
+
+    private byte get(int i) throws IOException {
+        if (i >= limit)
+            throw unexpected("end of file");
+        return byteAt(i);
+    }
+
+    private IOException unexpected(String what) {
+        return new IOException("Unexpected " + what + " at byte " + pos);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,64 @@
+package qupath.ext.ndpa.core;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Provides the offset of the image centre from the slide centre, which is the origin of the NDPA coordinates.
+ * <p>
+ * Providers can be chained with {@link #orElse(NdpaOffsetProvider)}, e.g. to read the NDPI tags directly
+ * and only use a slide library when that isn't possible.
+ */
+@FunctionalInterface
+public interface NdpaOffsetProvider {
+
+    /**
+     * Get the offset of the image centre from the slide centre.
+     *
+     * @param uri the image URI
+     * @return the x and y offsets in nanometres (either can be NaN), or null if this provider can't tell
+     * @throws IOException if the image could not be read
+     */
+    double[] getSlideCentreOffsetNm(URI uri) throws IOException;
+
+    /**
+     * Return a provider that falls back to another one when this provider returns null or fails.
+     *
+     * @param other the fallback provider
+     * @return the combined provider
+     */
+    default NdpaOffsetProvider orElse(NdpaOffsetProvider other) {
+        return uri -> {
+            double[] offset;
+            try {
+                offset = getSlideCentreOffsetNm(uri);
+            } catch (IOException e) {
+                try {
+                    return other.getSlideCentreOffsetNm(uri);
+                } catch (IOException e2) {
+                    e2.addSuppressed(e);
+                    throw e2;
+                }
+            }
+            return offset != null ? offset : other.getSlideCentreOffsetNm(uri);
+        };
+    }
+
+    /**
+     * Provider reading the Hamamatsu offset tags from local NDPI files with {@link NdpiTagReader}.
+     *
+     * @return the provider, which returns null for files that are not local
+     */
+    static NdpaOffsetProvider fromNdpiTags() {
+        return uri -> {
+            if (!"file".equals(uri.getScheme()))
+                return null;
+            Path path = Path.of(uri);
+            if (!Files.isRegularFile(path))
+                return null;
+            return NdpiTagReader.readSlideCentreOffsetNm(path);
+        };
+    }
+}
@@ -0,0 +1,190 @@
+package qupath.ext.ndpa.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming (StAX) reader for NDPA files.
+ * <p>
+ * Each call to {@link #next()} reads a single {@code ndpviewstate} element and returns it as an
+ * {@link NdpaAnnotation}, so only one annotation is held in memory at any time regardless of the
+ * size of the file.
+ */
+public class NdpaReader implements Closeable {
+
+    private static final XMLInputFactory factory = createFactory();
+
+    private final InputStream stream;
+    private final XMLStreamReader reader;
+
+    // Reusable point buffers, only the annotation gets a trimmed copy
+    private double[] bufferX = new double[256];
+    private double[] bufferY = new double[256];
+
+    /**
+     * Create a reader for an NDPA input stream. The stream is closed when the reader is closed.
+     *
+     * @param stream the NDPA input stream
+     * @throws IOException if the XML stream could not be created
+     */
+    public NdpaReader(InputStream stream) throws IOException {
+        this.stream = stream;
+        try {
+            this.reader = factory.createXMLStreamReader(stream);
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to read NDPA stream", e);
+        }
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // NDPA files have no DTD, so no reason to resolve anything external
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * Read the next annotation.
+     *
+     * @return the next annotation, or null if the end of the file was reached
+     * @throws IOException if the XML is malformed
+     */
+    public NdpaAnnotation next() throws IOException {
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && "ndpviewstate".equals(reader.getLocalName()))
+                    return readViewState();
+            }
+            return null;
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to parse NDPA file", e);
+        }
+    }
+
+    private NdpaAnnotation readViewState() throws XMLStreamException {
+        String id = reader.getAttributeValue(null, "id");
+        String title = "";
+        String details = "";
+        String type = "";
+        String color = "";
+        String specialType = "";
+
+        double x = Double.NaN, y = Double.NaN, radius = Double.NaN;
+        double x1 = Double.NaN, y1 = Double.NaN, x2 = Double.NaN, y2 = Double.NaN;
+        double pointX = Double.NaN, pointY = Double.NaN;
+        int nPoints = 0;
+
+        // Element names from the ndpviewstate down to the current element
+        Deque<String> path = new ArrayDeque<>();
+        path.push("ndpviewstate");
+
+        while (!path.isEmpty()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                String name = path.pop();
+                if ("point".equals(name)) {
+                    ensureCapacity(nPoints + 1);
+                    bufferX[nPoints] = pointX;
+                    bufferY[nPoints] = pointY;
+                    nPoints++;
+                }
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            String name = reader.getLocalName();
+            String parent = path.peek();
+
+            if ("ndpviewstate".equals(parent)) {
+                if ("title".equals(name)) {
+                    title = reader.getElementText().trim();
+                    continue;
+                } else if ("details".equals(name)) {
+                    details = reader.getElementText().trim();
+                    continue;
+                } else if ("annotation".equals(name)) {
+                    type = attribute("type").toUpperCase();
+                    color = attribute("color").toUpperCase();
+                    specialType = attribute("specialtype");
+                }
+            } else if ("annotation".equals(parent)) {
+                switch (name) {
+                    case "x" -> { x = readDouble(); continue; }
+                    case "y" -> { y = readDouble(); continue; }
+                    case "x1" -> { x1 = readDouble(); continue; }
+                    case "y1" -> { y1 = readDouble(); continue; }
+                    case "x2" -> { x2 = readDouble(); continue; }
+                    case "y2" -> { y2 = readDouble(); continue; }
+                    case "radius" -> { radius = readDouble(); continue; }
+                    default -> { }
+                }
+            } else if ("point".equals(parent)) {
+                if ("x".equals(name)) {
+                    pointX = readDouble();
+                    continue;
+                } else if ("y".equals(name)) {
+                    pointY = readDouble();
+                    continue;
+                }
+            }
+            if ("point".equals(name)) {
+                pointX = Double.NaN;
+                pointY = Double.NaN;
+            }
+            path.push(name);
+        }
+
+        double[] xs, ys;
+        if ("FREEHAND".equals(type)) {
+            xs = Arrays.copyOf(bufferX, nPoints);
+            ys = Arrays.copyOf(bufferY, nPoints);
+        } else if ("LINEARMEASURE".equals(type)) {
+            xs = new double[] { x1, x2 };
+            ys = new double[] { y1, y2 };
+        } else {
+            xs = new double[] { x };
+            ys = new double[] { y };
+        }
+        return new NdpaAnnotation(id, title, details, type, color, specialType, xs, ys, radius);
+    }
+
+    private String attribute(String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value == null ? "" : value;
+    }
+
+    private double readDouble() throws XMLStreamException {
+        return Double.parseDouble(reader.getElementText().trim());
+    }
+
+    private void ensureCapacity(int n) {
+        if (n > bufferX.length) {
+            int length = Math.max(n, bufferX.length * 2);
+            bufferX = Arrays.copyOf(bufferX, length);
+            bufferY = Arrays.copyOf(bufferY, length);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package qupath.ext.ndpa.core;
+
+/**
+ * Coordinate transform between the NDPA reference frame (nanometres from the slide centre)
+ * and image pixels.
+ * <p>
+ * Going from nanometres to pixels, coordinates are scaled by the pixel size, shifted by the
+ * offset of the slide centre from the top left of the image and optionally flipped.
+ * The bulk methods work on primitive arrays and don't allocate anything, so the same buffers
+ * can be reused for every annotation.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public class NdpaTransform {
+
+    private final double pixelWidthNm;
+    private final double pixelHeightNm;
+    private final double offsetX;
+    private final double offsetY;
+
+    // A flip is applied after scaling and shifting as: base + sign * value
+    private final double signX;
+    private final double signY;
+    private final double baseX;
+    private final double baseY;
+
+    private NdpaTransform(double pixelWidthNm, double pixelHeightNm, double offsetX, double offsetY,
+                          double signX, double signY, double baseX, double baseY) {
+        this.pixelWidthNm = pixelWidthNm;
+        this.pixelHeightNm = pixelHeightNm;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+        this.signX = signX;
+        this.signY = signY;
+        this.baseX = baseX;
+        this.baseY = baseY;
+    }
+
+    /**
+     * Create a transform from the pixel size and the position of the slide centre.
+     *
+     * @param pixelWidthNm the pixel width in nanometres
+     * @param pixelHeightNm the pixel height in nanometres
+     * @param offsetX x position of the NDPA origin in the image, in pixels
+     * @param offsetY y position of the NDPA origin in the image, in pixels
+     * @return the transform
+     */
+    public static NdpaTransform create(double pixelWidthNm, double pixelHeightNm, double offsetX, double offsetY) {
+        return new NdpaTransform(pixelWidthNm, pixelHeightNm, offsetX, offsetY, 1, 1, 0, 0);
+    }
+
+    /**
+     * Return a transform that additionally flips the pixel coordinates.
+     *
+     * @param flipX if true, x becomes width - x
+     * @param flipY if true, y becomes height - y
+     * @param width the image width in pixels
+     * @param height the image height in pixels
+     * @return the flipped transform (or this transform if there is nothing to flip)
+     */
+    public NdpaTransform flip(boolean flipX, boolean flipY, double width, double height) {
+        if (!flipX && !flipY)
+            return this;
+        double sx = signX, sy = signY, bx = baseX, by = baseY;
+        if (flipX) {
+            bx = width - bx;
+            sx = -sx;
+        }
+        if (flipY) {
+            by = height - by;
+            sy = -sy;
+        }
+        return new NdpaTransform(pixelWidthNm, pixelHeightNm, offsetX, offsetY, sx, sy, bx, by);
+    }
+
+    public double getPixelWidthNm() {
+        return pixelWidthNm;
+    }
+
+    public double getPixelHeightNm() {
+        return pixelHeightNm;
+    }
+
+    /**
+     * @param x x coordinate in nanometres
+     * @return x coordinate in pixels
+     */
+    public double toPixelX(double x) {
+        return baseX + signX * (x / pixelWidthNm + offsetX);
+    }
+
+    /**
+     * @param y y coordinate in nanometres
+     * @return y coordinate in pixels
+     */
+    public double toPixelY(double y) {
+        return baseY + signY * (y / pixelHeightNm + offsetY);
+    }
+
+    /**
+     * @param x x coordinate in pixels
+     * @return x coordinate in nanometres (truncated, as expected in NDPA files)
+     */
+    public long toNanometresX(double x) {
+        return (long) (((x - baseX) * signX - offsetX) * pixelWidthNm);
+    }
+
+    /**
+     * @param y y coordinate in pixels
+     * @return y coordinate in nanometres (truncated, as expected in NDPA files)
+     */
+    public long toNanometresY(double y) {
+        return (long) (((y - baseY) * signY - offsetY) * pixelHeightNm);
+    }
+
+    /**
+     * Convert a batch of coordinates from nanometres to pixels.
+     * The input and output arrays may be the same.
+     *
+     * @param xNm x coordinates in nanometres
+     * @param yNm y coordinates in nanometres
+     * @param xPx output x coordinates in pixels
+     * @param yPx output y coordinates in pixels
+     * @param n number of coordinates to convert
+     */
+    public void toPixels(double[] xNm, double[] yNm, double[] xPx, double[] yPx, int n) {
+        double sx = signX, bx = baseX, ox = offsetX, wx = pixelWidthNm;
+        for (int i = 0; i < n; i++)
+            xPx[i] = bx + sx * (xNm[i] / wx + ox);
+        double sy = signY, by = baseY, oy = offsetY, hy = pixelHeightNm;
+        for (int i = 0; i < n; i++)
+            yPx[i] = by + sy * (yNm[i] / hy + oy);
+    }
+
+    /**
+     * Convert a batch of coordinates from pixels to nanometres.
+     *
+     * @param xPx x coordinates in pixels
+     * @param yPx y coordinates in pixels
+     * @param xNm output x coordinates in nanometres
+     * @param yNm output y coordinates in nanometres
+     * @param n number of coordinates to convert
+     */
+    public void toNanometres(double[] xPx, double[] yPx, long[] xNm, long[] yNm, int n) {
+        double sx = signX, bx = baseX, ox = offsetX, wx = pixelWidthNm;
+        for (int i = 0; i < n; i++)
+            xNm[i] = (long) (((xPx[i] - bx) * sx - ox) * wx);
+        double sy = signY, by = baseY, oy = offsetY, hy = pixelHeightNm;
+        for (int i = 0; i < n; i++)
+            yNm[i] = (long) (((yPx[i] - by) * sy - oy) * hy);
+    }
+
+    @Override
+    public String toString() {
+        return "NdpaTransform[pixel size=" + pixelWidthNm + "x" + pixelHeightNm + " nm, offset=" + offsetX + ", " + offsetY
+                + ", flip=" + (signX < 0) + ", " + (signY < 0) + "]";
+    }
+}
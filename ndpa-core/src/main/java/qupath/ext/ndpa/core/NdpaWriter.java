@@ -0,0 +1,284 @@
+package qupath.ext.ndpa.core;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Streaming writer for NDPA files.
+ * <p>
+ * Each annotation is written to a buffered UTF-8 stream as soon as it is passed to the writer,
+ * so the output never needs to be held in memory. The XML declaration and the opening
+ * {@code annotations} element are written on creation, the closing element when the writer is closed.
+ * <p>
+ * The {@code ndpviewstate} ids are numbered from 1, in the order the annotations are written.
+ * <p>
+ * The annotations written can also be handed to a fragment sink, without their id, so that they can be
+ * written again to a later file with {@link #writeFragment(String)} instead of being serialised again.
+ */
+public class NdpaWriter implements Closeable {
+
+    private static final String LENS = "0.445623";
+
+    private final Writer out;
+    private final int viewX;
+    private final int viewY;
+
+    private int nextId = 1;
+    private final char[] digits = new char[20];
+
+    // Where the annotation is being written, either the output or the current fragment
+    private Writer writer;
+    private Consumer<String> fragmentSink;
+    private final StringWriter fragment = new StringWriter();
+
+    /**
+     * Create a writer. The stream is closed when the writer is closed.
+     *
+     * @param stream the output stream
+     * @param viewX the x position of the view stored with each annotation
+     * @param viewY the y position of the view stored with each annotation
+     * @throws IOException if the header could not be written
+     */
+    public NdpaWriter(OutputStream stream, int viewX, int viewY) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 65536);
+        this.writer = out;
+        this.viewX = viewX;
+        this.viewY = viewY;
+        writer.write("<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"yes\"?>\n");
+        writer.write("<annotations>\n");
+    }
+
+    /**
+     * @return the number of annotations written so far
+     */
+    public int getCount() {
+        return nextId - 1;
+    }
+
+    /**
+     * Set the sink receiving each annotation written from now on, as a fragment without its id.
+     *
+     * @param sink the sink, or null to stop collecting fragments
+     */
+    public void setFragmentSink(Consumer<String> sink) {
+        this.fragmentSink = sink;
+    }
+
+    /**
+     * Write an annotation collected from a fragment sink, with the next id.
+     *
+     * @param fragment the fragment, exactly as it was handed to the sink
+     * @throws IOException if the annotation could not be written
+     */
+    public void writeFragment(String fragment) throws IOException {
+        writer.write("  <ndpviewstate id=\"");
+        writeLong(nextId++);
+        writer.write("\">\n");
+        writer.write(fragment);
+    }
+
+    /**
+     * Write a closed freehand annotation.
+     *
+     * @param title the title
+     * @param details the details
+     * @param color the colour, as #rrggbb
+     * @param x the x coordinates in nanometres
+     * @param y the y coordinates in nanometres
+     * @param n the number of points
+     * @throws IOException if the annotation could not be written
+     */
+    public void writeFreehand(String title, String details, String color, long[] x, long[] y, int n) throws IOException {
+        writeViewStateStart(title, details);
+        writeAnnotationStart("freehand", "AnnotateFreehand", color, null);
+        writeElement("measuretype", 0);
+        writeElement("closed", 1);
+        writePointList(x, y, n);
+        writeViewStateEnd();
+    }
+
+    /**
+     * Write an annotation of any of the supported types (FREEHAND, CIRCLE, PIN or LINEARMEASURE).
+     * Coordinates are truncated to whole nanometres.
+     *
+     * @param annotation the annotation
+     * @throws IOException if the annotation could not be written, or its type is not supported
+     */
+    public void writeAnnotation(NdpaAnnotation annotation) throws IOException {
+        double[] x = annotation.getX();
+        double[] y = annotation.getY();
+        String type = annotation.getType().toUpperCase();
+        switch (type) {
+            case "FREEHAND" -> {
+                boolean isRectangle = "rectangle".equalsIgnoreCase(annotation.getSpecialType());
+                writeViewStateStart(annotation.getTitle(), annotation.getDetails());
+                writeAnnotationStart("freehand", isRectangle ? "AnnotateRectangle" : "AnnotateFreehand",
+                        annotation.getColor(), isRectangle ? "rectangle" : null);
+                writeElement("measuretype", 0);
+                writeElement("closed", 1);
+                long[] xNm = new long[x.length];
+                long[] yNm = new long[y.length];
+                for (int i = 0; i < x.length; i++) {
+                    xNm[i] = (long) x[i];
+                    yNm[i] = (long) y[i];
+                }
+                writePointList(xNm, yNm, x.length);
+            }
+            case "CIRCLE" -> {
+                writeViewStateStart(annotation.getTitle(), annotation.getDetails());
+                writeAnnotationStart("circle", "AnnotateCircle", annotation.getColor(), null);
+                writeElement("x", (long) x[0]);
+                writeElement("y", (long) y[0]);
+                writeElement("radius", (long) annotation.getRadius());
+                writeElement("measuretype", 3);
+            }
+            case "PIN" -> {
+                writeViewStateStart(annotation.getTitle(), annotation.getDetails());
+                writeAnnotationStart("pin", "AnnotatePin", annotation.getColor(), null);
+                writeElement("x", (long) x[0]);
+                writeElement("y", (long) y[0]);
+                writer.write("      <icon>pinblue</icon>\n");
+                writer.write("      <stricon>iconpinblue</stricon>\n");
+            }
+            case "LINEARMEASURE" -> {
+                writeViewStateStart(annotation.getTitle(), annotation.getDetails());
+                writeAnnotationStart("linearmeasure", "AnnotateRuler", annotation.getColor(), null);
+                writeElement("x1", (long) x[0]);
+                writeElement("y1", (long) y[0]);
+                writeElement("x2", (long) x[1]);
+                writeElement("y2", (long) y[1]);
+            }
+            default -> throw new IOException("Unsupported NDPA annotation type: " + annotation.getType());
+        }
+        writeViewStateEnd();
+    }
+
+    private void writeViewStateStart(String title, String details) throws IOException {
+        writer.write("  <ndpviewstate id=\"");
+        writeLong(nextId++);
+        writer.write("\">\n");
+        if (fragmentSink != null) {
+            fragment.getBuffer().setLength(0);
+            writer = fragment;
+        }
+        writer.write("    <title>");
+        writeEscaped(title);
+        writer.write("</title>\n");
+        writer.write("    <details>");
+        writeEscaped(details);
+        writer.write("</details>\n");
+        writer.write("    <coordformat>nanometers</coordformat>\n");
+        writer.write("    <lens>" + LENS + "</lens>\n");
+        writer.write("    <x>");
+        writeLong(viewX);
+        writer.write("</x>\n");
+        writer.write("    <y>");
+        writeLong(viewY);
+        writer.write("</y>\n");
+        writer.write("    <z>0</z>\n");
+        writer.write("    <showtitle>0</showtitle>\n");
+        writer.write("    <showhistogram>0</showhistogram>\n");
+        writer.write("    <showlineprofile>0</showlineprofile>\n");
+    }
+
+    private void writeAnnotationStart(String type, String displayName, String color, String specialType) throws IOException {
+        writer.write("    <annotation type=\"");
+        writer.write(type);
+        writer.write("\" displayname=\"");
+        writer.write(displayName);
+        writer.write("\" color=\"");
+        writeEscaped(color);
+        if (specialType != null) {
+            writer.write("\" specialtype=\"");
+            writeEscaped(specialType);
+        }
+        writer.write("\">\n");
+    }
+
+    private void writePointList(long[] x, long[] y, int n) throws IOException {
+        writer.write("      <pointlist>\n");
+        for (int i = 0; i < n; i++) {
+            writer.write("        <point>\n          <x>");
+            writeLong(x[i]);
+            writer.write("</x>\n          <y>");
+            writeLong(y[i]);
+            writer.write("</y>\n        </point>\n");
+        }
+        writer.write("      </pointlist>\n");
+    }
+
+    private void writeViewStateEnd() throws IOException {
+        writer.write("    </annotation>\n");
+        writer.write("  </ndpviewstate>\n");
+        if (writer == fragment) {
+            writer = out;
+            String text = fragment.toString();
+            out.write(text);
+            fragmentSink.accept(text);
+        }
+    }
+
+    private void writeElement(String name, long value) throws IOException {
+        writer.write("      <");
+        writer.write(name);
+        writer.write(">");
+        writeLong(value);
+        writer.write("</");
+        writer.write(name);
+        writer.write(">\n");
+    }
+
+    /**
+     * Write a long without creating a String.
+     */
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writer.write(Long.toString(value));
+            return;
+        }
+        boolean negative = value < 0;
+        long v = negative ? -value : value;
+        int pos = digits.length;
+        do {
+            digits[--pos] = (char) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        if (negative)
+            digits[--pos] = '-';
+        writer.write(digits, pos, digits.length - pos);
+    }
+
+    private void writeEscaped(String text) throws IOException {
+        if (text == null)
+            return;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&' -> writer.write("&amp;");
+                case '<' -> writer.write("&lt;");
+                case '>' -> writer.write("&gt;");
+                case '"' -> writer.write("&quot;");
+                default -> writer.write(c);
+            }
+        }
+    }
+
+    /**
+     * Write the closing element and close the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            out.write("</annotations>\n");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package qupath.ext.ndpa.core;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * Size, pixel calibration and slide centre offset of an NDPI image: everything needed to map
+ * NDPA coordinates onto the image.
+ * <p>
+ * This can be read straight from the NDPI tags with {@link #read(Path)}, so no image server is needed.
+ */
+public class NdpiImageInfo {
+
+    private static final int TAG_IMAGE_WIDTH = 256;
+    private static final int TAG_IMAGE_LENGTH = 257;
+    private static final int TAG_X_RESOLUTION = 282;
+    private static final int TAG_Y_RESOLUTION = 283;
+    private static final int TAG_RESOLUTION_UNIT = 296;
+
+    private final double width;
+    private final double height;
+    private final double pixelWidthNm;
+    private final double pixelHeightNm;
+    private final double xOffsetNm;
+    private final double yOffsetNm;
+
+    /**
+     * Create the image info.
+     *
+     * @param width the image width in pixels
+     * @param height the image height in pixels
+     * @param pixelWidthNm the pixel width in nanometres
+     * @param pixelHeightNm the pixel height in nanometres
+     * @param xOffsetNm the x offset of the image centre from the slide centre in nanometres, NaN if unknown
+     * @param yOffsetNm the y offset of the image centre from the slide centre in nanometres, NaN if unknown
+     */
+    public NdpiImageInfo(double width, double height, double pixelWidthNm, double pixelHeightNm,
+                         double xOffsetNm, double yOffsetNm) {
+        this.width = width;
+        this.height = height;
+        this.pixelWidthNm = pixelWidthNm;
+        this.pixelHeightNm = pixelHeightNm;
+        this.xOffsetNm = xOffsetNm;
+        this.yOffsetNm = yOffsetNm;
+    }
+
+    /**
+     * Read the image info from the first (full resolution) IFD of an NDPI file.
+     *
+     * @param path the NDPI file
+     * @return the image info
+     * @throws IOException if the file could not be read, or has no size or resolution tags
+     */
+    public static NdpiImageInfo read(Path path) throws IOException {
+        double[] values = NdpiTagReader.readNumericTags(path,
+                TAG_IMAGE_WIDTH, TAG_IMAGE_LENGTH, TAG_X_RESOLUTION, TAG_Y_RESOLUTION, TAG_RESOLUTION_UNIT,
+                NdpiTagReader.TAG_X_OFFSET_FROM_SLIDE_CENTRE, NdpiTagReader.TAG_Y_OFFSET_FROM_SLIDE_CENTRE);
+        if (Double.isNaN(values[0]) || Double.isNaN(values[1]))
+            throw new IOException("No image size in " + path);
+        if (!(values[2] > 0) || !(values[3] > 0))
+            throw new IOException("No pixel information in " + path);
+
+        // TIFF resolutions are in pixels per unit, inches by default
+        double unitNm;
+        int unit = Double.isNaN(values[4]) ? 2 : (int) values[4];
+        if (unit == 2)
+            unitNm = 2.54e7;
+        else if (unit == 3)
+            unitNm = 1e7;
+        else
+            throw new IOException("No pixel information in " + path);
+
+        return new NdpiImageInfo(values[0], values[1], unitNm / values[2], unitNm / values[3], values[5], values[6]);
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    public double getPixelWidthNm() {
+        return pixelWidthNm;
+    }
+
+    public double getPixelHeightNm() {
+        return pixelHeightNm;
+    }
+
+    public double getXOffsetNm() {
+        return xOffsetNm;
+    }
+
+    public double getYOffsetNm() {
+        return yOffsetNm;
+    }
+
+    /**
+     * @return the x position of the slide centre (the NDPA origin) in the image, in pixels
+     */
+    public double getSlideCentreX() {
+        double centreX = width / 2.0;
+        return Double.isNaN(xOffsetNm) ? centreX : centreX - xOffsetNm / pixelWidthNm;
+    }
+
+    /**
+     * @return the y position of the slide centre (the NDPA origin) in the image, in pixels
+     */
+    public double getSlideCentreY() {
+        double centreY = height / 2.0;
+        return Double.isNaN(yOffsetNm) ? centreY : centreY - yOffsetNm / pixelHeightNm;
+    }
+
+    /**
+     * Create the nanometre to pixel transform for this image.
+     *
+     * @param flipVertically if true, the image is flipped vertically
+     * @return the transform
+     */
+    public NdpaTransform createTransform(boolean flipVertically) {
+        return NdpaTransform.create(pixelWidthNm, pixelHeightNm, getSlideCentreX(), getSlideCentreY())
+                .flip(false, flipVertically, width, height);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof NdpiImageInfo other))
+            return false;
+        return Double.compare(width, other.width) == 0 && Double.compare(height, other.height) == 0
+                && Double.compare(pixelWidthNm, other.pixelWidthNm) == 0
+                && Double.compare(pixelHeightNm, other.pixelHeightNm) == 0
+                && Double.compare(xOffsetNm, other.xOffsetNm) == 0 && Double.compare(yOffsetNm, other.yOffsetNm) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(width, height, pixelWidthNm, pixelHeightNm, xOffsetNm, yOffsetNm);
+    }
+
+    @Override
+    public String toString() {
+        return "NdpiImageInfo[" + width + "x" + height + ", pixel size " + pixelWidthNm + "x" + pixelHeightNm
+                + " nm, offset " + xOffsetNm + ", " + yOffsetNm + " nm]";
+    }
+}
@@ -0,0 +1,165 @@
+package qupath.ext.ndpa.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Minimal reader for numeric TIFF tags in the first IFD of an NDPI file.
+ * <p>
+ * Only the header, the first IFD and (if needed) the values it points to are read, using positioned
+ * reads on a {@link FileChannel}. This is enough to get the Hamamatsu specific tags without
+ * opening the whole slide.
+ */
+public class NdpiTagReader {
+
+    /**
+     * Hamamatsu tag holding the x offset of the image centre from the slide centre, in nanometres.
+     */
+    public static final int TAG_X_OFFSET_FROM_SLIDE_CENTRE = 65422;
+
+    /**
+     * Hamamatsu tag holding the y offset of the image centre from the slide centre, in nanometres.
+     */
+    public static final int TAG_Y_OFFSET_FROM_SLIDE_CENTRE = 65423;
+
+    private NdpiTagReader() {
+    }
+
+    /**
+     * Read the offset of the image centre from the slide centre.
+     *
+     * @param path the NDPI file
+     * @return the x and y offsets in nanometres, or null if neither tag is present
+     * @throws IOException if the file could not be read or is not a TIFF file
+     */
+    public static double[] readSlideCentreOffsetNm(Path path) throws IOException {
+        double[] values = readNumericTags(path, TAG_X_OFFSET_FROM_SLIDE_CENTRE, TAG_Y_OFFSET_FROM_SLIDE_CENTRE);
+        if (Double.isNaN(values[0]) && Double.isNaN(values[1]))
+            return null;
+        return values;
+    }
+
+    /**
+     * Read the first value of numeric tags from the first IFD of a TIFF file.
+     *
+     * @param path the TIFF file
+     * @param tags the tags to read
+     * @return the tag values, in the same order as the tags, NaN for missing or non-numeric tags
+     * @throws IOException if the file could not be read or is not a TIFF file
+     */
+    public static double[] readNumericTags(Path path, int... tags) throws IOException {
+        double[] values = new double[tags.length];
+        Arrays.fill(values, Double.NaN);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = read(channel, 0, 16, ByteOrder.LITTLE_ENDIAN);
+            ByteOrder order;
+            short byteOrder = header.getShort(0);
+            if (byteOrder == 0x4949)
+                order = ByteOrder.LITTLE_ENDIAN;
+            else if (byteOrder == 0x4D4D)
+                order = ByteOrder.BIG_ENDIAN;
+            else
+                throw new IOException("Not a TIFF file: " + path);
+            header.order(order);
+
+            int magic = header.getShort(2) & 0xFFFF;
+            boolean bigTiff;
+            long ifdOffset;
+            if (magic == 42) {
+                bigTiff = false;
+                ifdOffset = header.getInt(4) & 0xFFFFFFFFL;
+            } else if (magic == 43) {
+                bigTiff = true;
+                ifdOffset = header.getLong(8);
+            } else {
+                throw new IOException("Not a TIFF file: " + path);
+            }
+
+            int countSize = bigTiff ? 8 : 2;
+            int entrySize = bigTiff ? 20 : 12;
+            ByteBuffer countBuffer = read(channel, ifdOffset, countSize, order);
+            long nEntries = bigTiff ? countBuffer.getLong(0) : countBuffer.getShort(0) & 0xFFFF;
+            if (nEntries <= 0 || nEntries > 65535)
+                throw new IOException("Invalid TIFF directory in " + path);
+
+            ByteBuffer entries = read(channel, ifdOffset + countSize, (int) nEntries * entrySize, order);
+            for (int i = 0; i < nEntries; i++) {
+                int pos = i * entrySize;
+                int tag = entries.getShort(pos) & 0xFFFF;
+                int index = indexOf(tags, tag);
+                if (index < 0)
+                    continue;
+                int type = entries.getShort(pos + 2) & 0xFFFF;
+                long count = bigTiff ? entries.getLong(pos + 4) : entries.getInt(pos + 4) & 0xFFFFFFFFL;
+                int valuePos = pos + (bigTiff ? 12 : 8);
+                int typeSize = typeSize(type);
+                if (typeSize == 0 || count < 1)
+                    continue;
+
+                ByteBuffer value;
+                int offset;
+                if (count <= (bigTiff ? 8 : 4) / typeSize) {
+                    // Values stored in the entry itself, if they all fit
+                    value = entries;
+                    offset = valuePos;
+                } else {
+                    long valueOffset = bigTiff ? entries.getLong(valuePos) : entries.getInt(valuePos) & 0xFFFFFFFFL;
+                    value = read(channel, valueOffset, typeSize, order);
+                    offset = 0;
+                }
+                values[index] = readValue(value, offset, type);
+            }
+        }
+        return values;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length, ByteOrder order) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(order);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of TIFF file");
+        }
+        return buffer;
+    }
+
+    private static int indexOf(int[] tags, int tag) {
+        for (int i = 0; i < tags.length; i++) {
+            if (tags[i] == tag)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int typeSize(int type) {
+        return switch (type) {
+            case 1, 6 -> 1;         // BYTE, SBYTE
+            case 3, 8 -> 2;         // SHORT, SSHORT
+            case 4, 9, 11 -> 4;     // LONG, SLONG, FLOAT
+            case 5, 10, 12, 16, 17 -> 8; // RATIONAL, SRATIONAL, DOUBLE, LONG8, SLONG8
+            default -> 0;
+        };
+    }
+
+    private static double readValue(ByteBuffer buffer, int pos, int type) {
+        return switch (type) {
+            case 1 -> buffer.get(pos) & 0xFF;
+            case 6 -> buffer.get(pos);
+            case 3 -> buffer.getShort(pos) & 0xFFFF;
+            case 8 -> buffer.getShort(pos);
+            case 4 -> buffer.getInt(pos) & 0xFFFFFFFFL;
+            case 9 -> buffer.getInt(pos);
+            case 11 -> buffer.getFloat(pos);
+            case 5 -> (buffer.getInt(pos) & 0xFFFFFFFFL) / (double) (buffer.getInt(pos + 4) & 0xFFFFFFFFL);
+            case 10 -> buffer.getInt(pos) / (double) buffer.getInt(pos + 4);
+            case 12 -> buffer.getDouble(pos);
+            case 16, 17 -> buffer.getLong(pos);
+            default -> Double.NaN;
+        };
+    }
+}
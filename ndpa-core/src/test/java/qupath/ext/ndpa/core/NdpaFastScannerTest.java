@@ -0,0 +1,123 @@
+package qupath.ext.ndpa.core;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class NdpaFastScannerTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void matchesReaderOnWrittenAnnotations() throws IOException {
+        Path file = dir.resolve("written.ndpa");
+        Random random = new Random(42);
+        try (OutputStream stream = Files.newOutputStream(file);
+             NdpaWriter writer = new NdpaWriter(stream, 1000, -2000)) {
+            for (int i = 0; i < 100; i++) {
+                int n = 3 + random.nextInt(50);
+                long[] x = new long[n];
+                long[] y = new long[n];
+                for (int j = 0; j < n; j++) {
+                    x[j] = random.nextInt(20_000_000) - 10_000_000;
+                    y[j] = random.nextInt(20_000_000) - 10_000_000;
+                }
+                writer.writeFreehand("Tumour " + i, "details " + i, "#ff00aa", x, y, n);
+            }
+            writer.writeAnnotation(annotation("Circle", "CIRCLE", "", new double[] { 5 }, new double[] { -7 }, 42));
+            writer.writeAnnotation(annotation("Pin", "PIN", "", new double[] { 5 }, new double[] { -7 }, Double.NaN));
+            writer.writeAnnotation(annotation("Ruler", "LINEARMEASURE", "", new double[] { 5, 6 }, new double[] { -7, 8 }, Double.NaN));
+            writer.writeAnnotation(annotation("Box", "FREEHAND", "rectangle",
+                    new double[] { 0, 10, 10, 0 }, new double[] { 0, 0, 10, 10 }, Double.NaN));
+        }
+        assertEquals(104, assertSameAnnotations(file).size());
+    }
+
+    @Test
+    void decodesEscapedText() throws IOException {
+        Path file = dir.resolve("escaped.ndpa");
+        try (OutputStream stream = Files.newOutputStream(file);
+             NdpaWriter writer = new NdpaWriter(stream, 0, 0)) {
+            writer.writeFreehand("a & b <c> \"d\" 'e'", "line 1\r\nline 2\rline 3 & é",
+                    "#00ff00", new long[] { 1, 2, 3 }, new long[] { 4, 5, 6 }, 3);
+            writer.writeAnnotation(annotation("  &  ", "PIN", "", new double[] { 1 }, new double[] { 2 }, Double.NaN));
+        }
+        List<String> annotations = assertSameAnnotations(file);
+        assertEquals(2, annotations.size());
+    }
+
+    @Test
+    void decodesReferencesAndLineEnds() throws IOException {
+        Path file = dir.resolve("references.ndpa");
+        Files.writeString(file, """
+                <?xml version="1.0" encoding="UTF-8"?>\r
+                <annotations>\r
+                <ndpviewstate id="a&amp;b&#9;c\r
+                d">\r
+                <title>&#65;&#x1F600;&apos;&#32;</title>\r
+                <details>line 1\r
+                line 2&#13;</details>\r
+                <annotation type="pin" color="#ff0000" specialtype="x&quot;y"><x>1</x><y>2</y></annotation>\r
+                </ndpviewstate>\r
+                </annotations>\r
+                """, StandardCharsets.UTF_8);
+        List<String> annotations = assertSameAnnotations(file);
+        assertEquals("a&b\tc d|A😀'|line 1\nline 2|PIN|#FF0000|x\"y|[1.0]|[2.0]|NaN", annotations.get(0));
+    }
+
+    @Test
+    void leavesDeclaredEntitiesToTheReader() throws IOException {
+        Path file = dir.resolve("entity.ndpa");
+        Files.writeString(file, "<annotations><ndpviewstate id=\"1\"><title>&custom;</title></ndpviewstate></annotations>",
+                StandardCharsets.UTF_8);
+        try (NdpaFastScanner scanner = new NdpaFastScanner(file)) {
+            assertThrows(IOException.class, scanner::next);
+        }
+    }
+
+    private static NdpaAnnotation annotation(String title, String type, String specialType, double[] x, double[] y, double radius) {
+        return new NdpaAnnotation(null, title, "", type, "#00ff00", specialType, x, y, radius);
+    }
+
+    /**
+     * Read a file with both the scanner and the XML reader, check that they agree and return the annotations
+     */
+    private static List<String> assertSameAnnotations(Path file) throws IOException {
+        List<String> expected = new ArrayList<>();
+        try (InputStream stream = Files.newInputStream(file);
+             NdpaReader reader = new NdpaReader(stream)) {
+            NdpaAnnotation annotation;
+            while ((annotation = reader.next()) != null)
+                expected.add(describe(annotation));
+        }
+        List<String> actual = new ArrayList<>();
+        try (NdpaFastScanner scanner = new NdpaFastScanner(file)) {
+            NdpaAnnotation annotation;
+            while ((annotation = scanner.next()) != null)
+                actual.add(describe(annotation));
+        }
+        assertIterableEquals(expected, actual);
+        return actual;
+    }
+
+    private static String describe(NdpaAnnotation annotation) {
+        return String.join("|", annotation.getId() == null ? "null" : annotation.getId(), annotation.getTitle(),
+                annotation.getDetails(), annotation.getType(), annotation.getColor(), annotation.getSpecialType(),
+                Arrays.toString(annotation.getX()), Arrays.toString(annotation.getY()), Double.toString(annotation.getRadius()));
+    }
+}
@@ -0,0 +1,99 @@
+package qupath.ext.ndpa.core;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class NdpaWriterTest {
+
+    @Test
+    void roundTripsThroughReader() throws IOException {
+        List<NdpaAnnotation> annotations = List.of(
+                new NdpaAnnotation(null, "Tumour & stroma", "<details>", "FREEHAND", "#FF0000", "",
+                        new double[] { -1000, 2000, 3000 }, new double[] { 4000, -5000, 6000 }, Double.NaN),
+                new NdpaAnnotation(null, "Box", "", "FREEHAND", "#00FF00", "rectangle",
+                        new double[] { 0, 10, 10, 0 }, new double[] { 0, 0, 10, 10 }, Double.NaN),
+                new NdpaAnnotation(null, "Circle", "", "CIRCLE", "#0000FF", "",
+                        new double[] { 5 }, new double[] { -7 }, 42),
+                new NdpaAnnotation(null, "Pin", "", "PIN", "#FFFF00", "",
+                        new double[] { 8 }, new double[] { 9 }, Double.NaN),
+                new NdpaAnnotation(null, "Ruler", "", "LINEARMEASURE", "#00FFFF", "",
+                        new double[] { 1, 2 }, new double[] { 3, 4 }, Double.NaN));
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (NdpaWriter writer = new NdpaWriter(stream, 100, 200)) {
+            for (NdpaAnnotation annotation : annotations)
+                writer.writeAnnotation(annotation);
+            assertEquals(annotations.size(), writer.getCount());
+        }
+
+        List<NdpaAnnotation> read = read(stream.toByteArray());
+        assertEquals(annotations.size(), read.size());
+        for (int i = 0; i < annotations.size(); i++) {
+            NdpaAnnotation expected = annotations.get(i);
+            NdpaAnnotation actual = read.get(i);
+            assertEquals(Integer.toString(i + 1), actual.getId());
+            assertEquals(expected.getTitle(), actual.getTitle());
+            assertEquals(expected.getDetails(), actual.getDetails());
+            assertEquals(expected.getType(), actual.getType());
+            assertEquals(expected.getColor(), actual.getColor());
+            assertEquals(expected.getSpecialType(), actual.getSpecialType());
+            assertArrayEquals(expected.getX(), actual.getX());
+            assertArrayEquals(expected.getY(), actual.getY());
+            assertEquals(expected.getRadius(), actual.getRadius());
+            assertEquals(expected.getContentHash(), actual.getContentHash());
+        }
+    }
+
+    @Test
+    void splicedFragmentsGiveTheSameFile() throws IOException {
+        long[] x = { 1, 2, 3 };
+        long[] y = { 4, 5, 6 };
+
+        ByteArrayOutputStream direct = new ByteArrayOutputStream();
+        List<String> fragments = new ArrayList<>();
+        try (NdpaWriter writer = new NdpaWriter(direct, 0, 0)) {
+            writer.setFragmentSink(fragments::add);
+            writer.writeFreehand("First", "", "#ff0000", x, y, 3);
+            writer.writeFreehand("Second", "", "#00ff00", y, x, 3);
+            writer.setFragmentSink(null);
+        }
+
+        ByteArrayOutputStream spliced = new ByteArrayOutputStream();
+        try (NdpaWriter writer = new NdpaWriter(spliced, 0, 0)) {
+            for (String fragment : fragments)
+                writer.writeFragment(fragment);
+        }
+        assertEquals(direct.toString(), spliced.toString());
+        assertEquals(2, read(spliced.toByteArray()).size());
+    }
+
+    @Test
+    void rejectsUnsupportedTypes() throws IOException {
+        try (NdpaWriter writer = new NdpaWriter(new ByteArrayOutputStream(), 0, 0)) {
+            var annotation = new NdpaAnnotation(null, "", "", "ELLIPSE", "#000000", "",
+                    new double[] { 0 }, new double[] { 0 }, Double.NaN);
+            assertThrows(IOException.class, () -> writer.writeAnnotation(annotation));
+        }
+    }
+
+    private static List<NdpaAnnotation> read(byte[] bytes) throws IOException {
+        List<NdpaAnnotation> annotations = new ArrayList<>();
+        try (NdpaReader reader = new NdpaReader(new ByteArrayInputStream(bytes))) {
+            NdpaAnnotation annotation;
+            while ((annotation = reader.next()) != null)
+                annotations.add(annotation);
+            assertNull(reader.next());
+        }
+        return annotations;
+    }
+}
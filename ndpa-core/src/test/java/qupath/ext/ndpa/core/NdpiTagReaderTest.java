@@ -0,0 +1,102 @@
+package qupath.ext.ndpa.core;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class NdpiTagReaderTest {
+
+    private static final short TYPE_SHORT = 3;
+    private static final short TYPE_SLONG = 9;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsImageInfoFromFakeNdpi() throws IOException {
+        Path slide = dir.resolve("slide.ndpi");
+        NdpiImageInfo expected = FakeNdpiWriter.DEFAULT_IMAGE_INFO;
+        FakeNdpiWriter.write(slide, expected);
+
+        NdpiImageInfo info = NdpiImageInfo.read(slide);
+        assertEquals(expected.getWidth(), info.getWidth());
+        assertEquals(expected.getHeight(), info.getHeight());
+        assertEquals(expected.getPixelWidthNm(), info.getPixelWidthNm(), 1e-6);
+        assertEquals(expected.getPixelHeightNm(), info.getPixelHeightNm(), 1e-6);
+        assertEquals(expected.getXOffsetNm(), info.getXOffsetNm());
+        assertEquals(expected.getYOffsetNm(), info.getYOffsetNm());
+        assertArrayEquals(new double[] { expected.getXOffsetNm(), expected.getYOffsetNm() },
+                NdpiTagReader.readSlideCentreOffsetNm(slide));
+    }
+
+    @Test
+    void missingOffsetsAreNaN() throws IOException {
+        Path slide = dir.resolve("slide.ndpi");
+        FakeNdpiWriter.write(slide, new NdpiImageInfo(1000, 2000, 500, 500, Double.NaN, Double.NaN));
+
+        NdpiImageInfo info = NdpiImageInfo.read(slide);
+        assertTrue(Double.isNaN(info.getXOffsetNm()));
+        assertTrue(Double.isNaN(info.getYOffsetNm()));
+        assertEquals(500, info.getSlideCentreX());
+        assertEquals(1000, info.getSlideCentreY());
+        assertNull(NdpiTagReader.readSlideCentreOffsetNm(slide));
+    }
+
+    @Test
+    void readsMultiValueTagsStoredOutOfLine() throws IOException {
+        // Two SLONGs and three SHORTs don't fit in the 4 bytes of an entry, so the entries hold offsets
+        for (ByteOrder order : new ByteOrder[] { ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN }) {
+            ByteBuffer buffer = ByteBuffer.allocate(64).order(order);
+            buffer.putShort((short) (order == ByteOrder.LITTLE_ENDIAN ? 0x4949 : 0x4D4D)).putShort((short) 42).putInt(8);
+            buffer.putShort((short) 2);
+            buffer.putShort((short) 300).putShort(TYPE_SHORT).putInt(3).putInt(40);
+            buffer.putShort((short) NdpiTagReader.TAG_X_OFFSET_FROM_SLIDE_CENTRE).putShort(TYPE_SLONG).putInt(2).putInt(48);
+            buffer.putInt(0);
+            buffer.position(40);
+            buffer.putShort((short) 7).putShort((short) 8).putShort((short) 9);
+            buffer.position(48);
+            buffer.putInt(-1_500_000).putInt(99);
+            Path file = dir.resolve("multi-" + order + ".tif");
+            Files.write(file, buffer.array());
+
+            assertArrayEquals(new double[] { 7, -1_500_000 },
+                    NdpiTagReader.readNumericTags(file, 300, NdpiTagReader.TAG_X_OFFSET_FROM_SLIDE_CENTRE));
+        }
+    }
+
+    @Test
+    void readsInlineAndOutOfLineBigTiffValues() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(96).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) 0x4949).putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(16);
+        buffer.putLong(2);
+        // Two SLONGs fit in the 8 bytes of a BigTIFF entry, three don't
+        buffer.putShort((short) NdpiTagReader.TAG_X_OFFSET_FROM_SLIDE_CENTRE).putShort(TYPE_SLONG).putLong(2)
+                .putInt(-250).putInt(1);
+        buffer.putShort((short) NdpiTagReader.TAG_Y_OFFSET_FROM_SLIDE_CENTRE).putShort(TYPE_SLONG).putLong(3).putLong(80);
+        buffer.putLong(0);
+        buffer.position(80);
+        buffer.putInt(4_000).putInt(2).putInt(3);
+        Path file = dir.resolve("big.tif");
+        Files.write(file, buffer.array());
+
+        assertArrayEquals(new double[] { -250, 4_000 }, NdpiTagReader.readSlideCentreOffsetNm(file));
+    }
+
+    @Test
+    void rejectsFilesThatAreNotTiff() throws IOException {
+        Path file = dir.resolve("not.ndpi");
+        Files.writeString(file, "<?xml version=\"1.0\"?><annotations/>");
+        assertThrows(IOException.class, () -> NdpiTagReader.readSlideCentreOffsetNm(file));
+    }
+}
@@ -0,0 +1,79 @@
+package qupath.ext.ndpa.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes fake NDPI files: a little-endian TIFF header with a single IFD holding the size, resolution and
+ * Hamamatsu offset tags, and no pixels.
+ * <p>
+ * This is enough for {@link NdpiTagReader} and {@link NdpiImageInfo#read(Path)}, and for the extension's fake image
+ * server to stand in for a real slide, so that tests and benchmarks run without real slides.
+ */
+public class FakeNdpiWriter {
+
+    /**
+     * A typical 40x slide: 100k x 80k pixels of 0.25 microns, slightly off the slide centre.
+     */
+    public static final NdpiImageInfo DEFAULT_IMAGE_INFO = new NdpiImageInfo(100_000, 80_000, 250, 250, -1_500_000, 750_000);
+
+    private static final short TYPE_SHORT = 3;
+    private static final short TYPE_LONG = 4;
+    private static final short TYPE_RATIONAL = 5;
+    private static final short TYPE_SLONG = 9;
+
+    private FakeNdpiWriter() {
+    }
+
+    /**
+     * Write a fake NDPI file.
+     *
+     * @param path the file to write
+     * @param imageInfo the size, pixel size and offsets of the image; NaN offsets are left out
+     * @throws IOException if the file could not be written
+     */
+    public static void write(Path path, NdpiImageInfo imageInfo) throws IOException {
+        boolean hasXOffset = !Double.isNaN(imageInfo.getXOffsetNm());
+        boolean hasYOffset = !Double.isNaN(imageInfo.getYOffsetNm());
+        int nEntries = 5 + (hasXOffset ? 1 : 0) + (hasYOffset ? 1 : 0);
+
+        int ifdOffset = 8;
+        int rationalOffset = ifdOffset + 2 + nEntries * 12 + 4;
+        ByteBuffer buffer = ByteBuffer.allocate(rationalOffset + 16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(ifdOffset);
+
+        // Entries must be sorted by tag
+        buffer.putShort((short) nEntries);
+        putEntry(buffer, 256, TYPE_LONG, (int) imageInfo.getWidth());
+        putEntry(buffer, 257, TYPE_LONG, (int) imageInfo.getHeight());
+        putEntry(buffer, 282, TYPE_RATIONAL, rationalOffset);
+        putEntry(buffer, 283, TYPE_RATIONAL, rationalOffset + 8);
+        // Resolution in pixels per centimetre, as in real NDPI files
+        putEntry(buffer, 296, TYPE_SHORT, 3);
+        if (hasXOffset)
+            putEntry(buffer, NdpiTagReader.TAG_X_OFFSET_FROM_SLIDE_CENTRE, TYPE_SLONG, (int) imageInfo.getXOffsetNm());
+        if (hasYOffset)
+            putEntry(buffer, NdpiTagReader.TAG_Y_OFFSET_FROM_SLIDE_CENTRE, TYPE_SLONG, (int) imageInfo.getYOffsetNm());
+        buffer.putInt(0);
+
+        putResolution(buffer, imageInfo.getPixelWidthNm());
+        putResolution(buffer, imageInfo.getPixelHeightNm());
+        Files.write(path, buffer.array());
+    }
+
+    private static void putEntry(ByteBuffer buffer, int tag, short type, int value) {
+        buffer.putShort((short) tag).putShort(type).putInt(1);
+        if (type == TYPE_SHORT)
+            buffer.putShort((short) value).putShort((short) 0);
+        else
+            buffer.putInt(value);
+    }
+
+    private static void putResolution(ByteBuffer buffer, double pixelSizeNm) {
+        // 1 cm = 1e7 nm, kept as a fraction with a denominator of 1000
+        buffer.putInt((int) Math.round(1e10 / pixelSizeNm)).putInt(1000);
+    }
+}
@@ -18,3 +18,9 @@ plugins {
 }
 
 //include("qupath-extension-openslide")
+
+// NDPA model, parsers and writer, independent of QuPath
+include("ndpa-core")
+
+// JMH benchmarks, run with ./gradlew :benchmarks:jmh
+include("benchmarks")
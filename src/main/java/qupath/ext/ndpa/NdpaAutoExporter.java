@@ -0,0 +1,186 @@
+package qupath.ext.ndpa;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javafx.application.Platform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+
+/**
+ * Exports the annotations of an image to its NDPA file in the background whenever its hierarchy changes.
+ * <p>
+ * Changes are coalesced: the export only starts once the hierarchy has been left alone for the quiet period,
+ * and two exports never start closer together than the minimum interval, however fast the edits come.
+ * Only one export runs at a time; changes made while it runs are picked up by the next one.
+ * <p>
+ * The existing NDPA file is backed up before the first export that changes it only, rather than once per export.
+ */
+class NdpaAutoExporter implements PathObjectHierarchyListener, Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NdpaAutoExporter.class);
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ndpa-auto-export");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ImageData<?> imageData;
+    private final long quietMillis;
+    private final long minIntervalMillis;
+    private final boolean parallel;
+    private final ExecutorService executor;
+
+    private ScheduledFuture<?> pending;
+    private boolean running;
+    // Set when the hierarchy changes, cleared when a snapshot of the annotations is taken
+    private boolean changed;
+    private boolean dirty;
+    private boolean backedUp;
+    private long lastStart;
+    private boolean ignoring;
+    private volatile boolean closed;
+
+    /**
+     * Start exporting the annotations of an image when its hierarchy changes.
+     *
+     * @param imageData The image
+     * @param quietMillis How long the hierarchy should stay unchanged before it is exported
+     * @param minIntervalMillis The minimum time between the start of two exports
+     * @param parallel If true, outlines are simplified on the common fork-join pool
+     * @param executor The executor running the exports
+     */
+    NdpaAutoExporter(ImageData<?> imageData, long quietMillis, long minIntervalMillis, boolean parallel, ExecutorService executor) {
+        this.imageData = imageData;
+        this.quietMillis = quietMillis;
+        this.minIntervalMillis = minIntervalMillis;
+        this.parallel = parallel;
+        this.executor = executor;
+        imageData.getHierarchy().addListener(this);
+    }
+
+    @Override
+    public void hierarchyChanged(PathObjectHierarchyEvent event) {
+        // Wait for brush strokes and the like to be finished, measurements are not exported
+        if (ignoring || event.isChanging() || event.isObjectMeasurementEvent())
+            return;
+        synchronized (this) {
+            changed = true;
+        }
+        schedule(quietMillis);
+    }
+
+    /**
+     * Change the hierarchy without exporting it, e.g. because the changes come from the NDPA file itself.
+     * This should be called from the thread firing the hierarchy events.
+     *
+     * @param action The action changing the hierarchy
+     */
+    void runWithoutExport(Runnable action) {
+        ignoring = true;
+        try {
+            action.run();
+        } finally {
+            ignoring = false;
+        }
+    }
+
+    /**
+     * (Re)start the quiet period, without starting before the minimum interval since the last export
+     */
+    private synchronized void schedule(long delayMillis) {
+        if (closed)
+            return;
+        if (pending != null)
+            pending.cancel(false);
+        long delay = Math.max(delayMillis, lastStart + minIntervalMillis - System.currentTimeMillis());
+        pending = scheduler.schedule(() -> Platform.runLater(this::export), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Export the annotations once the quiet period is over, unless the exporter was closed in the meantime
+     */
+    private void export() {
+        synchronized (this) {
+            if (closed)
+                return;
+        }
+        startExport();
+    }
+
+    /**
+     * Take a snapshot of the annotations on the application thread, and write them in the background.
+     * If an export is already running, another one follows once it has finished.
+     */
+    private void startExport() {
+        boolean backup;
+        synchronized (this) {
+            if (running) {
+                dirty = true;
+                return;
+            }
+            running = true;
+            changed = false;
+            lastStart = System.currentTimeMillis();
+            backup = !backedUp;
+        }
+        List<PathObject> annotations = new ArrayList<>(imageData.getHierarchy().getAnnotationObjects());
+        executor.submit(() -> {
+            try {
+                // Exports leaving the file as it was don't back it up either
+                if (NdpaTools.writeNDPAObjects(imageData, annotations, parallel, backup, null)) {
+                    synchronized (this) {
+                        backedUp = true;
+                    }
+                }
+            } catch (Exception e) {
+                logger.warn("Unable to export NDPA annotations automatically: {}", e.getMessage(), e);
+            } finally {
+                synchronized (this) {
+                    running = false;
+                    if (dirty) {
+                        dirty = false;
+                        // Once closed, the changes made before closing are still exported, but nothing is scheduled
+                        if (closed)
+                            Platform.runLater(this::startExport);
+                        else
+                            schedule(0);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop listening to the hierarchy. Changes that haven't been exported yet are exported straight away,
+     * or once the running export has finished, so this should be called from the application thread.
+     */
+    @Override
+    public void close() {
+        imageData.getHierarchy().removeListener(this);
+        boolean flush;
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            if (pending != null)
+                pending.cancel(false);
+            // Changes may be waiting for their quiet period, or for the running export to finish
+            flush = changed || dirty;
+        }
+        if (flush)
+            startExport();
+    }
+}
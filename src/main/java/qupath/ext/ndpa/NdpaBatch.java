@@ -0,0 +1,145 @@
+package qupath.ext.ndpa;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs an NDPA operation on many images (project entries or files) on a bounded pool of worker threads.
+ * <p>
+ * Each image is processed by a single worker, and any failure is turned into a result for that image,
+ * so one bad image never stops the batch.
+ */
+class NdpaBatch {
+
+    private static final Logger logger = LoggerFactory.getLogger(NdpaBatch.class);
+
+    private NdpaBatch() {
+    }
+
+    /**
+     * Process one image of a batch
+     *
+     * @param <I> the type of the batch items
+     */
+    @FunctionalInterface
+    interface BatchTask<I> {
+        NdpaBatchResult run(I item, ImageMonitor monitor) throws Exception;
+    }
+
+    /**
+     * Run a task on each item on a bounded thread pool, logging and collecting the results
+     *
+     * @param name the name of the operation, for logging
+     * @param items the items to process
+     * @param itemName function giving the name of an item, used in the results
+     * @param nThreads the maximum number of items processed at the same time
+     * @param monitor optional progress monitor, may be null; it is called from the worker threads
+     * @param task the task run for each item
+     * @return one result per item, in the order of the items
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+     */
+    static <I> List<NdpaBatchResult> run(String name, Collection<I> items, Function<? super I, String> itemName,
+                                         int nThreads, NdpaProgressMonitor monitor, BatchTask<I> task) throws InterruptedException {
+        int nItems = items.size();
+        AtomicInteger done = new AtomicInteger();
+        AtomicLong annotations = new AtomicLong();
+        AtomicLong points = new AtomicLong();
+        long startTime = System.currentTimeMillis();
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nThreads), r -> {
+            Thread thread = new Thread(r, "ndpa-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<NdpaBatchResult>> futures = new ArrayList<>();
+            for (I item : items) {
+                futures.add(pool.submit(() -> {
+                    NdpaBatchResult result;
+                    String imageName = itemName.apply(item);
+                    long itemStart = System.currentTimeMillis();
+                    if (monitor != null && monitor.isCancelled()) {
+                        result = new NdpaBatchResult(imageName, NdpaBatchResult.Status.SKIPPED, 0, 0, 0, "Cancelled");
+                    } else {
+                        try {
+                            result = task.run(item, new ImageMonitor(monitor));
+                        } catch (CancellationException e) {
+                            result = new NdpaBatchResult(imageName, NdpaBatchResult.Status.SKIPPED, 0, 0,
+                                    System.currentTimeMillis() - itemStart, "Cancelled");
+                        } catch (Exception e) {
+                            logger.error("NDPA " + name + " failed for " + imageName, e);
+                            result = new NdpaBatchResult(imageName, NdpaBatchResult.Status.FAILED, 0, 0,
+                                    System.currentTimeMillis() - itemStart, e.getLocalizedMessage());
+                        }
+                    }
+                    logger.info("NDPA {}: {}", name, result);
+                    annotations.addAndGet(result.getAnnotations());
+                    points.addAndGet(result.getPoints());
+                    int n = done.incrementAndGet();
+                    if (monitor != null)
+                        monitor.update(annotations.get(), points.get(), n / (double) nItems);
+                    return result;
+                }));
+            }
+
+            List<NdpaBatchResult> results = new ArrayList<>();
+            for (var future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // Shouldn't happen, every failure is turned into a result
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+            logger.info("NDPA {} summary:\n{}", name, NdpaBatchResult.summarize(results, System.currentTimeMillis() - startTime));
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Monitor for a single image, keeping its final counts and passing cancellation through from the batch
+     */
+    static class ImageMonitor implements NdpaProgressMonitor {
+
+        private final NdpaProgressMonitor batchMonitor;
+        private volatile long annotations;
+        private volatile long points;
+
+        private ImageMonitor(NdpaProgressMonitor batchMonitor) {
+            this.batchMonitor = batchMonitor;
+        }
+
+        @Override
+        public void update(long annotations, long points, double progress) {
+            this.annotations = annotations;
+            this.points = points;
+        }
+
+        long getAnnotations() {
+            return annotations;
+        }
+
+        long getPoints() {
+            return points;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return batchMonitor != null && batchMonitor.isCancelled();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package qupath.ext.ndpa;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Outcome of importing or exporting the NDPA annotations of one image, as part of a batch.
+ */
+public class NdpaBatchResult {
+
+    /**
+     * Status of one image in a batch.
+     */
+    public enum Status {
+        /**
+         * The annotations were imported or exported
+         */
+        SUCCESS,
+        /**
+         * There was nothing to do for this image (e.g. no NDPA file)
+         */
+        SKIPPED,
+        /**
+         * Something went wrong, see the message
+         */
+        FAILED
+    }
+
+    private final String imageName;
+    private final Status status;
+    private final long annotations;
+    private final long points;
+    private final long elapsedMillis;
+    private final String message;
+
+    /**
+     * Create a result.
+     *
+     * @param imageName the name of the image
+     * @param status the status
+     * @param annotations the number of annotations imported or exported
+     * @param points the number of points imported or exported
+     * @param elapsedMillis the time spent on this image
+     * @param message an explanation for skipped or failed images, may be null
+     */
+    public NdpaBatchResult(String imageName, Status status, long annotations, long points, long elapsedMillis, String message) {
+        this.imageName = imageName;
+        this.status = status;
+        this.annotations = annotations;
+        this.points = points;
+        this.elapsedMillis = elapsedMillis;
+        this.message = message;
+    }
+
+    public String getImageName() {
+        return imageName;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public long getAnnotations() {
+        return annotations;
+    }
+
+    public long getPoints() {
+        return points;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        String s = imageName + ": " + status + ", " + annotations + " annotations, " + points + " points, " + elapsedMillis + " ms";
+        return message == null ? s : s + " (" + message + ")";
+    }
+
+    /**
+     * Write the summary of a batch to a text file.
+     *
+     * @param file the file to write
+     * @param results the results of the batch
+     * @param elapsedMillis the total time taken by the batch
+     * @throws IOException if the file could not be written
+     */
+    public static void writeSummary(Path file, List<NdpaBatchResult> results, long elapsedMillis) throws IOException {
+        Files.writeString(file, summarize(results, elapsedMillis) + "\n", StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Summarise a batch, one line per image followed by the totals.
+     *
+     * @param results the results of the batch
+     * @param elapsedMillis the total time taken by the batch
+     * @return the summary
+     */
+    public static String summarize(List<NdpaBatchResult> results, long elapsedMillis) {
+        StringBuilder sb = new StringBuilder();
+        long annotations = 0, points = 0;
+        int[] counts = new int[Status.values().length];
+        for (NdpaBatchResult result : results) {
+            sb.append(result).append('\n');
+            annotations += result.getAnnotations();
+            points += result.getPoints();
+            counts[result.getStatus().ordinal()]++;
+        }
+        sb.append('\n')
+                .append(results.size()).append(" images in ").append(elapsedMillis).append(" ms: ")
+                .append(counts[Status.SUCCESS.ordinal()]).append(" succeeded, ")
+                .append(counts[Status.SKIPPED.ordinal()]).append(" skipped, ")
+                .append(counts[Status.FAILED.ordinal()]).append(" failed, ")
+                .append(annotations).append(" annotations, ")
+                .append(points).append(" points");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,232 @@
+package qupath.ext.ndpa;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import qupath.ext.ndpa.core.NdpiImageInfo;
+import qupath.lib.common.ColorTools;
+import qupath.lib.io.PathIO;
+import qupath.lib.objects.PathObject;
+
+/**
+ * Command line entry point converting NDPA files to GeoJSON and back, without JavaFX or an image server.
+ * <p>
+ * The slide geometry is read straight from the NDPI tags, and the slides are processed concurrently on a
+ * bounded pool of worker threads. Statistics are printed as JSON on the standard output when all the slides
+ * have been processed, and are the only thing printed there (logs go to the standard error); the exit code is
+ * 0 on success, 1 if any slide failed and 2 for invalid arguments.
+ * <pre>
+ * NdpaCli to-geojson|to-ndpa [--threads N] [--geojson-dir DIR] [--parallel] slide.ndpi|directory...
+ * </pre>
+ * For a slide {@code image.ndpi}, the NDPA file is {@code image.ndpi.ndpa} and the GeoJSON file is
+ * {@code image.ndpi.geojson}, next to the slide unless a GeoJSON directory is given.
+ */
+public class NdpaCli {
+
+    // Logback configuration sending the logs to the standard error, unless another one is given
+    private static final String LOGBACK_CONFIG_PROPERTY = "logback.configurationFile";
+    private static final String LOGBACK_CONFIG = "qupath/ext/ndpa/cli-logback.xml";
+
+    private static final String USAGE = "Usage: NdpaCli to-geojson|to-ndpa [--threads N] [--geojson-dir DIR] [--parallel] slide.ndpi|directory...";
+
+    // Colour of objects without a colour or a classification
+    private static final int DEFAULT_COLOR = ColorTools.packRGB(255, 0, 0);
+
+    private final boolean toGeoJson;
+    private final Path geoJsonDir;
+    private final boolean parallel;
+
+    private NdpaCli(boolean toGeoJson, Path geoJsonDir, boolean parallel) {
+        this.toGeoJson = toGeoJson;
+        this.geoJsonDir = geoJsonDir;
+        this.parallel = parallel;
+    }
+
+    public static void main(String[] args) {
+        if (System.getProperty(LOGBACK_CONFIG_PROPERTY) == null)
+            System.setProperty(LOGBACK_CONFIG_PROPERTY, LOGBACK_CONFIG);
+        System.exit(run(args));
+    }
+
+    /**
+     * Run a conversion.
+     *
+     * @param args the command line arguments
+     * @return the exit code
+     */
+    static int run(String[] args) {
+        if (args.length == 0) {
+            System.err.println(USAGE);
+            return 2;
+        }
+        String command = args[0];
+        if (!"to-geojson".equals(command) && !"to-ndpa".equals(command)) {
+            System.err.println("Unknown command: " + command);
+            System.err.println(USAGE);
+            return 2;
+        }
+
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        Path geoJsonDir = null;
+        boolean parallel = false;
+        List<Path> slides = new ArrayList<>();
+        try {
+            for (int i = 1; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads" -> nThreads = Integer.parseInt(requireValue(args, ++i));
+                    case "--geojson-dir" -> geoJsonDir = Path.of(requireValue(args, ++i));
+                    case "--parallel" -> parallel = true;
+                    default -> addSlides(Path.of(args[i]), slides);
+                }
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+        if (slides.isEmpty()) {
+            System.err.println("No NDPI files to convert");
+            return 2;
+        }
+
+        NdpaCli cli = new NdpaCli("to-geojson".equals(command), geoJsonDir, parallel);
+        long startTime = System.currentTimeMillis();
+        List<NdpaBatchResult> results;
+        // Anything printed on the standard output while converting (e.g. by a console logger that was configured
+        // before main could set the logging configuration) goes to the standard error, so the statistics stay valid JSON
+        PrintStream out = System.out;
+        System.setOut(System.err);
+        try {
+            if (geoJsonDir != null)
+                Files.createDirectories(geoJsonDir);
+            results = NdpaBatch.run(command, slides, Path::toString, nThreads, null, cli::convert);
+        } catch (IOException e) {
+            System.err.println("Unable to create " + geoJsonDir + ": " + e.getMessage());
+            return 2;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
+        } finally {
+            System.setOut(out);
+        }
+
+        out.println(toJson(command, nThreads, results, System.currentTimeMillis() - startTime));
+        return results.stream().anyMatch(r -> r.getStatus() == NdpaBatchResult.Status.FAILED) ? 1 : 0;
+    }
+
+    private static String requireValue(String[] args, int i) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        return args[i];
+    }
+
+    /**
+     * Add a slide, or all the slides in a directory
+     */
+    private static void addSlides(Path path, List<Path> slides) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> stream = Files.list(path)) {
+                stream.filter(p -> p.getFileName().toString().toLowerCase().endsWith(".ndpi"))
+                        .sorted()
+                        .forEach(slides::add);
+            }
+        } else if (path.getFileName().toString().toLowerCase().endsWith(".ndpi")) {
+            slides.add(path);
+        } else {
+            throw new IllegalArgumentException("Not an NDPI file or a directory: " + path);
+        }
+    }
+
+    private NdpaBatchResult convert(Path slide, NdpaBatch.ImageMonitor monitor) throws IOException {
+        return toGeoJson ? convertToGeoJson(slide, monitor) : convertToNdpa(slide, monitor);
+    }
+
+    private NdpaBatchResult convertToGeoJson(Path slide, NdpaBatch.ImageMonitor monitor) throws IOException {
+        String name = slide.toString();
+        File ndpaFile = new File(slide + ".ndpa");
+        if (!ndpaFile.exists())
+            return new NdpaBatchResult(name, NdpaBatchResult.Status.SKIPPED, 0, 0, 0, "No NDPA file");
+
+        long startTime = System.currentTimeMillis();
+        NdpiImageInfo imageInfo = NdpiImageInfo.read(slide);
+        List<PathObject> annotations = NdpaTools.readNDPAObjects(ndpaFile, imageInfo, null, parallel, monitor);
+        PathIO.exportObjectsAsGeoJSON(getGeoJsonFile(slide), annotations, PathIO.GeoJsonExportOptions.FEATURE_COLLECTION);
+        return new NdpaBatchResult(name, NdpaBatchResult.Status.SUCCESS, annotations.size(), monitor.getPoints(),
+                System.currentTimeMillis() - startTime, null);
+    }
+
+    private NdpaBatchResult convertToNdpa(Path slide, NdpaBatch.ImageMonitor monitor) throws IOException {
+        String name = slide.toString();
+        File geoJsonFile = getGeoJsonFile(slide);
+        if (!geoJsonFile.exists())
+            return new NdpaBatchResult(name, NdpaBatchResult.Status.SKIPPED, 0, 0, 0, "No GeoJSON file");
+
+        long startTime = System.currentTimeMillis();
+        NdpiImageInfo imageInfo = NdpiImageInfo.read(slide);
+        List<PathObject> annotations = PathIO.readObjects(geoJsonFile).stream()
+                .filter(PathObject::isAnnotation)
+                .toList();
+        NdpaTools.writeNDPAObjects(new File(slide + ".ndpa"), imageInfo, annotations, NdpaCli::getColor, parallel, monitor);
+        return new NdpaBatchResult(name, NdpaBatchResult.Status.SUCCESS, monitor.getAnnotations(), monitor.getPoints(),
+                System.currentTimeMillis() - startTime, null);
+    }
+
+    private File getGeoJsonFile(Path slide) {
+        String fileName = slide.getFileName() + ".geojson";
+        return geoJsonDir == null ? new File(slide + ".geojson") : geoJsonDir.resolve(fileName).toFile();
+    }
+
+    /**
+     * Get the colour of an object without the GUI preferences: its own colour, or the colour of its class
+     */
+    private static int getColor(PathObject pathObject) {
+        Integer color = pathObject.getColor();
+        if (color == null && pathObject.getPathClass() != null)
+            color = pathObject.getPathClass().getColor();
+        return color == null ? DEFAULT_COLOR : color;
+    }
+
+    private static String toJson(String command, int nThreads, List<NdpaBatchResult> results, long elapsedMillis) {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("command", command);
+        stats.addProperty("threads", nThreads);
+        stats.addProperty("elapsedMillis", elapsedMillis);
+
+        int[] counts = new int[NdpaBatchResult.Status.values().length];
+        long annotations = 0, points = 0;
+        JsonArray files = new JsonArray();
+        for (NdpaBatchResult result : results) {
+            counts[result.getStatus().ordinal()]++;
+            annotations += result.getAnnotations();
+            points += result.getPoints();
+
+            JsonObject file = new JsonObject();
+            file.addProperty("file", result.getImageName());
+            file.addProperty("status", result.getStatus().name());
+            file.addProperty("annotations", result.getAnnotations());
+            file.addProperty("points", result.getPoints());
+            file.addProperty("elapsedMillis", result.getElapsedMillis());
+            if (result.getMessage() != null)
+                file.addProperty("message", result.getMessage());
+            files.add(file);
+        }
+        stats.addProperty("files", results.size());
+        stats.addProperty("succeeded", counts[NdpaBatchResult.Status.SUCCESS.ordinal()]);
+        stats.addProperty("skipped", counts[NdpaBatchResult.Status.SKIPPED.ordinal()]);
+        stats.addProperty("failed", counts[NdpaBatchResult.Status.FAILED.ordinal()]);
+        stats.addProperty("annotations", annotations);
+        stats.addProperty("points", points);
+        stats.add("results", files);
+        return new GsonBuilder().setPrettyPrinting().create().toJson(stats);
+    }
+}
@@ -0,0 +1,282 @@
+package qupath.ext.ndpa;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import qupath.ext.ndpa.core.NdpiImageInfo;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Cache of the serialised {@code ndpviewstate} fragments of the objects exported to each NDPA file.
+ * <p>
+ * Each object is identified by its ID and a fingerprint of everything that ends up in the file (ROI, name,
+ * classification and colour), so a repeated export only needs to simplify and serialise the objects that
+ * changed; the fragments of the others are spliced back in with new ids.
+ * <p>
+ * Fragments are only valid for the image geometry they were written with, so an entry is dropped when the
+ * image info of the file changes. The fragments of all the files together are kept within a size limit: the least
+ * recently exported files are dropped first, and an export whose fragments don't fit stops collecting them as soon
+ * as it goes over the limit, rather than holding the whole document in memory.
+ */
+public class NdpaExportCache {
+
+    private final Map<String, Entry> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxChars;
+    private long chars;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxChars the maximum size of the fragments of all the files, 0 to disable the cache
+     */
+    public NdpaExportCache(long maxChars) {
+        this.maxChars = Math.max(0, maxChars);
+    }
+
+    /**
+     * Change the size limit, dropping the least recently exported files if needed.
+     *
+     * @param maxChars the maximum size of the fragments of all the files, 0 to disable the cache
+     */
+    public synchronized void setMaxChars(long maxChars) {
+        this.maxChars = Math.max(0, maxChars);
+        trim();
+    }
+
+    /**
+     * Get the fragments cached for an NDPA file.
+     *
+     * @param ndpaFile the NDPA file
+     * @param imageInfo the image info the objects are about to be exported with
+     * @return the cached objects keyed by object ID, empty if nothing is cached for this file and image info
+     */
+    synchronized Map<String, CachedObject> get(File ndpaFile, NdpiImageInfo imageInfo) {
+        Entry entry = cache.get(ndpaFile.getAbsolutePath());
+        if (entry == null || !entry.imageInfo.equals(imageInfo))
+            return Map.of();
+        return entry.objects;
+    }
+
+    /**
+     * Start collecting the fragments of an export, up to the current size limit.
+     *
+     * @return the collector to pass to {@link #put(File, NdpiImageInfo, Collector)} once the export has completed
+     */
+    synchronized Collector collect() {
+        return new Collector(maxChars);
+    }
+
+    /**
+     * Replace the fragments cached for an NDPA file, with those of the export that just completed.
+     * If the export went over the size limit, the file is no longer cached at all.
+     *
+     * @param ndpaFile the NDPA file
+     * @param imageInfo the image info the objects were exported with
+     * @param collector the fragments of the export
+     */
+    synchronized void put(File ndpaFile, NdpiImageInfo imageInfo, Collector collector) {
+        hits += collector.hits;
+        misses += collector.misses;
+        remove(ndpaFile);
+        if (collector.objects == null || collector.chars > maxChars)
+            return;
+        cache.put(ndpaFile.getAbsolutePath(), new Entry(imageInfo, collector.objects, collector.chars));
+        chars += collector.chars;
+        trim();
+    }
+
+    /**
+     * Drop the fragments cached for an NDPA file, e.g. once its image has been closed.
+     *
+     * @param ndpaFile the NDPA file
+     */
+    public synchronized void remove(File ndpaFile) {
+        Entry entry = cache.remove(ndpaFile.getAbsolutePath());
+        if (entry != null)
+            chars -= entry.chars;
+    }
+
+    /**
+     * Remove all entries.
+     */
+    public synchronized void clear() {
+        cache.clear();
+        chars = 0;
+    }
+
+    /**
+     * @return the size of the cached fragments, in chars
+     */
+    public synchronized long getChars() {
+        return chars;
+    }
+
+    /**
+     * @return the number of exported objects whose fragments were reused
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of exported objects that had to be simplified and serialised
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private void trim() {
+        var iterator = cache.values().iterator();
+        while (chars > maxChars && iterator.hasNext()) {
+            chars -= iterator.next().chars;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Compute the fingerprint of an object, covering everything written to the NDPA file.
+     *
+     * @param pathObject the object
+     * @param color the packed RGB colour the object is exported with
+     * @return the fingerprint
+     */
+    static long fingerprint(PathObject pathObject, int color) {
+        long hash = mix(0, Objects.hashCode(pathObject.getName()));
+        hash = mix(hash, Objects.hashCode(pathObject.getPathClass() == null ? null : pathObject.getPathClass().toString()));
+        hash = mix(hash, color & 0xFFFFFF);
+
+        ROI roi = pathObject.getROI();
+        hash = mix(hash, roi.getClass().getName().hashCode());
+        hash = mix(hash, roi.getImagePlane().hashCode());
+        for (var point : roi.getAllPoints()) {
+            hash = mix(hash, Double.doubleToLongBits(point.getX()));
+            hash = mix(hash, Double.doubleToLongBits(point.getY()));
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 32);
+    }
+
+    /**
+     * Collects the fragments of one export, and gives up on them as soon as they go over the size limit.
+     * It is only used by the thread writing the file.
+     */
+    static class Collector {
+
+        private final long maxChars;
+        private Map<String, CachedObject> objects = new HashMap<>();
+        private long chars;
+        private int hits;
+        private int misses;
+
+        private Collector(long maxChars) {
+            this.maxChars = maxChars;
+        }
+
+        /**
+         * Add an object written from its cached fragments.
+         *
+         * @param id the object ID
+         * @param object the cached fragments
+         */
+        void add(String id, CachedObject object) {
+            hits++;
+            if (objects != null) {
+                objects.put(id, object);
+                count(object.chars);
+            }
+        }
+
+        /**
+         * Start collecting the fragments of an object that is about to be serialised.
+         *
+         * @param id the object ID
+         * @param fingerprint the fingerprint of the object
+         * @return the object the fragments should be added to, or null if the export is no longer collected
+         */
+        CachedObject start(String id, long fingerprint) {
+            misses++;
+            if (objects == null)
+                return null;
+            var object = new CachedObject(fingerprint);
+            objects.put(id, object);
+            return object;
+        }
+
+        /**
+         * Add a fragment of an object returned by {@link #start(String, long)}.
+         *
+         * @param object the object
+         * @param fragment the fragment
+         */
+        void addFragment(CachedObject object, String fragment) {
+            if (objects == null)
+                return;
+            object.fragments.add(fragment);
+            object.chars += fragment.length();
+            count(fragment.length());
+        }
+
+        private void count(long nChars) {
+            chars += nChars;
+            if (chars > maxChars)
+                objects = null;
+        }
+    }
+
+    /**
+     * The fragments written for one object, one per {@code ndpviewstate}
+     */
+    static class CachedObject {
+
+        private final long fingerprint;
+        private final List<String> fragments = new ArrayList<>(2);
+        private long chars;
+        private long points;
+
+        private CachedObject(long fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        long getFingerprint() {
+            return fingerprint;
+        }
+
+        List<String> getFragments() {
+            return fragments;
+        }
+
+        long getPoints() {
+            return points;
+        }
+
+        void addPoints(long nPoints) {
+            points += nPoints;
+        }
+    }
+
+    private static class Entry {
+
+        private final NdpiImageInfo imageInfo;
+        private final Map<String, CachedObject> objects;
+        private final long chars;
+
+        private Entry(NdpiImageInfo imageInfo, Map<String, CachedObject> objects, long chars) {
+            this.imageInfo = imageInfo;
+            this.objects = objects;
+            this.chars = chars;
+        }
+    }
+}
@@ -1,18 +1,37 @@
 package qupath.ext.ndpa;
 
+import javafx.application.Platform;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.Property;
+import javafx.concurrent.Task;
+import javafx.event.ActionEvent;
+import javafx.scene.control.ButtonType;
+import javafx.scene.control.CheckMenuItem;
 import javafx.scene.control.MenuItem;
+import javafx.scene.control.TextArea;
+import org.controlsfx.dialog.ProgressDialog;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import qupath.fx.dialogs.Dialogs;
 import qupath.fx.prefs.controlsfx.PropertyItemBuilder;
 import qupath.lib.common.Version;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.extensions.QuPathExtension;
 import qupath.lib.gui.prefs.PathPrefs;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 //import qupath.ext.ndpa.NdpaTools;
 /**
@@ -67,6 +86,72 @@ public class NdpaExtension implements QuPathExtension {
 	private static final BooleanProperty enableClassFromName = PathPrefs.createPersistentPreference(
 			"classFromName", true);
 
+	/**
+	 * Build the ROIs on the common fork-join pool while the NDPA file is being read,
+	 * and simplify the outlines on the same pool while it is being written.
+	 */
+	private static final BooleanProperty parallelProcessing = PathPrefs.createPersistentPreference(
+			"ndpaParallelProcessing", true);
+
+	/**
+	 * Number of images processed at the same time by the project-wide commands.
+	 */
+	private static final IntegerProperty batchThreads = PathPrefs.createPersistentPreference(
+			"ndpaBatchThreads", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+
+	/**
+	 * Reload the NDPA annotations of the current image whenever its NDPA file is changed by another application.
+	 */
+	private static final BooleanProperty autoReload = PathPrefs.createPersistentPreference(
+			"ndpaAutoReload", false);
+
+	/**
+	 * Time the NDPA file should be left alone before it is reloaded, so that a save in several writes only reloads once
+	 */
+	private static final long AUTO_RELOAD_QUIET_MILLIS = 500;
+
+	/**
+	 * Watcher of the NDPA file of the current image, if auto-reload is enabled
+	 */
+	private NdpaFileWatcher watcher;
+
+	/**
+	 * Export the annotations of the current image to its NDPA file in the background whenever they change.
+	 */
+	private static final BooleanProperty autoExport = PathPrefs.createPersistentPreference(
+			"ndpaAutoExport", false);
+
+	/**
+	 * Number of seconds the annotations should be left alone before they are exported automatically.
+	 */
+	private static final IntegerProperty autoExportDelay = PathPrefs.createPersistentPreference(
+			"ndpaAutoExportDelay", 5);
+
+	/**
+	 * Minimum time between two automatic exports, however fast the annotations are edited
+	 */
+	private static final long AUTO_EXPORT_MIN_INTERVAL_MILLIS = 10_000;
+
+	/**
+	 * Exporter of the annotations of the current image, if auto-export is enabled
+	 */
+	private NdpaAutoExporter autoExporter;
+
+	/**
+	 * Maximum size of the annotations kept in memory from the last exports, so that unchanged ones aren't simplified again.
+	 */
+	private static final IntegerProperty exportCacheSize = PathPrefs.createPersistentPreference(
+			"ndpaExportCacheSize", NdpaTools.DEFAULT_EXPORT_CACHE_MB);
+
+	/**
+	 * Executor running the NDPA import and export tasks, one at a time
+	 */
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "ndpa-task");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	@Override
 	public void installExtension(QuPathGUI qupath) {
 		if (isInstalled) {
@@ -76,6 +161,27 @@ public class NdpaExtension implements QuPathExtension {
 		isInstalled = true;
 		addPreferenceToPane(qupath);
 		addMenuItem(qupath);
+		autoReload.addListener((v, o, n) -> updateWatcher(qupath));
+		qupath.imageDataProperty().addListener((v, o, n) -> updateWatcher(qupath));
+		updateWatcher(qupath);
+		autoExport.addListener((v, o, n) -> updateAutoExporter(qupath));
+		autoExportDelay.addListener((v, o, n) -> updateAutoExporter(qupath));
+		qupath.imageDataProperty().addListener((v, o, n) -> updateAutoExporter(qupath));
+		updateAutoExporter(qupath);
+		exportCacheSize.addListener((v, o, n) -> NdpaTools.setExportCacheSize(n.intValue()));
+		NdpaTools.setExportCacheSize(exportCacheSize.get());
+		qupath.imageDataProperty().addListener((v, o, n) -> evictExportCache(qupath, o));
+	}
+
+	/**
+	 * Drop the exported annotations cached for an image once it is no longer open in any viewer.
+	 * @param qupath The QuPath GUI
+	 * @param imageData The image that was replaced in a viewer, may be null
+	 */
+	private static void evictExportCache(QuPathGUI qupath, ImageData<?> imageData) {
+		if (imageData == null || qupath.getAllViewers().stream().anyMatch(viewer -> viewer.getImageData() == imageData))
+			return;
+		NdpaTools.evictExportCache(imageData);
 	}
 
 	/**
@@ -90,10 +196,30 @@ public class NdpaExtension implements QuPathExtension {
 				.category("Ndpa extension")
 				.description("Enable class creation from NDPA annotation names")
 				.build();
+		var parallelItem = new PropertyItemBuilder<>(parallelProcessing, Boolean.class)
+				.name("Parallel NDPA processing")
+				.category("Ndpa extension")
+				.description("Build imported annotations and simplify exported ones on all available processors")
+				.build();
+		var threadsItem = new PropertyItemBuilder<>(batchThreads, Integer.class)
+				.name("NDPA project threads")
+				.category("Ndpa extension")
+				.description("Number of images processed at the same time when importing or exporting a whole project")
+				.build();
+		var autoExportDelayItem = new PropertyItemBuilder<>(autoExportDelay, Integer.class)
+				.name("NDPA auto-export delay (s)")
+				.category("Ndpa extension")
+				.description("Number of seconds the annotations should be left alone before they are exported automatically")
+				.build();
+		var exportCacheItem = new PropertyItemBuilder<>(exportCacheSize, Integer.class)
+				.name("NDPA export cache (MB)")
+				.category("Ndpa extension")
+				.description("Memory used to keep the annotations of the last exports, so that unchanged ones are exported faster (0 to disable)")
+				.build();
 		qupath.getPreferencePane()
 				.getPropertySheet()
 				.getItems()
-				.add(propertyItem);
+				.addAll(propertyItem, parallelItem, threadsItem, autoExportDelayItem, exportCacheItem);
 	}
 
 
@@ -111,33 +237,292 @@ public class NdpaExtension implements QuPathExtension {
 		menuItem = new MenuItem("Export annotations as NDPA");
 		menuItem.setOnAction(e -> exportNdpaCurrentViewer());
 		menu.getItems().add(menuItem);
+
+		menuItem = new MenuItem("Import NDPA annotations for project");
+		menuItem.setOnAction(e -> importNdpaProject());
+		menuItem.disableProperty().bind(qupath.projectProperty().isNull());
+		menu.getItems().add(menuItem);
+
+		menuItem = new MenuItem("Export NDPA annotations for project");
+		menuItem.setOnAction(e -> exportNdpaProject());
+		menuItem.disableProperty().bind(qupath.projectProperty().isNull());
+		menu.getItems().add(menuItem);
+
+		var autoReloadItem = new CheckMenuItem("Auto-reload NDPA annotations");
+		autoReloadItem.selectedProperty().bindBidirectional(autoReload);
+		menu.getItems().add(autoReloadItem);
+
+		var autoExportItem = new CheckMenuItem("Auto-export NDPA annotations");
+		autoExportItem.selectedProperty().bindBidirectional(autoExport);
+		menu.getItems().add(autoExportItem);
+	}
+
+	/**
+	 * Export the annotations of the current image automatically if auto-export is enabled,
+	 * and stop exporting those of the previous one.
+	 * @param qupath The QuPath GUI
+	 */
+	private void updateAutoExporter(QuPathGUI qupath) {
+		if (autoExporter != null) {
+			autoExporter.close();
+			autoExporter = null;
+		}
+		var imageData = qupath.getImageData();
+		if (!autoExport.get() || imageData == null)
+			return;
+		long quietMillis = Math.max(0, autoExportDelay.get()) * 1000L;
+		autoExporter = new NdpaAutoExporter(imageData, quietMillis, AUTO_EXPORT_MIN_INTERVAL_MILLIS,
+				parallelProcessing.get(), executor);
+	}
+
+	/**
+	 * Apply the changes read from the NDPA file of an image, without exporting them straight back to the file
+	 * @param imageData The image
+	 * @param changes The changes to apply
+	 */
+	private void applyChanges(ImageData<?> imageData, NdpaImportManifest.Changes changes) {
+		if (autoExporter != null)
+			autoExporter.runWithoutExport(() -> changes.apply(imageData));
+		else
+			changes.apply(imageData);
+	}
+
+	/**
+	 * Watch the NDPA file of the current image if auto-reload is enabled, and stop watching the previous one.
+	 * @param qupath The QuPath GUI
+	 */
+	private void updateWatcher(QuPathGUI qupath) {
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				logger.debug("Unable to close NDPA file watcher: {}", e.getMessage());
+			}
+			watcher = null;
+		}
+		var imageData = qupath.getImageData();
+		if (!autoReload.get() || imageData == null)
+			return;
+		try {
+			File ndpaFile = NdpaTools.getNdpaFile(imageData.getServer().getURIs().iterator().next());
+			watcher = new NdpaFileWatcher(ndpaFile.toPath(), AUTO_RELOAD_QUIET_MILLIS,
+					() -> Platform.runLater(() -> reloadNdpa(qupath, imageData)));
+		} catch (IOException | RuntimeException e) {
+			logger.debug("Not watching the NDPA file of {}: {}", imageData, e.getMessage());
+		}
+	}
+
+	/**
+	 * Re-import the NDPA file of an image after it changed on disk, only applying what changed since the last import.
+	 * Nothing is shown unless it fails, so that the viewer stays usable.
+	 * @param qupath The QuPath GUI
+	 * @param imageData The image whose NDPA file changed
+	 */
+	private void reloadNdpa(QuPathGUI qupath, ImageData<?> imageData) {
+		if (qupath.getImageData() != imageData)
+			return;
+		boolean parallel = parallelProcessing.get();
+		List<PathObject> annotations = new ArrayList<>(imageData.getHierarchy().getAnnotationObjects());
+		executor.submit(() -> {
+			try {
+				// Unchanged files are skipped, and objects deleted since the last import stay deleted
+				var changes = NdpaTools.readNDPAChanges(imageData, annotations, null, parallel, false, null);
+				if (!changes.isEmpty())
+					Platform.runLater(() -> applyChanges(imageData, changes));
+			} catch (Exception e) {
+				logger.warn("Unable to reload NDPA annotations: {}", e.getMessage(), e);
+			}
+		});
 	}
 
 	/**
 	 * Import from NDPA file
 	 */
 	private void importNdpaCurrentViewer() {
-		try {
-			var qupath = QuPathGUI.getInstance();
-			var imageData = qupath.getImageData();
-			NdpaTools.readNDPA(imageData, null);
-        } catch (Exception e) {
-			logger.error("Unable to import NDPA anntotations", e);
-            e.printStackTrace();
+		var qupath = QuPathGUI.getInstance();
+		var imageData = qupath.getImageData();
+		if (imageData == null) {
+			Dialogs.showErrorMessage("Import NDPA annotations", "No image is open!");
+			return;
 		}
+		boolean parallel = parallelProcessing.get();
+		// Take a snapshot of the annotations on the application thread, to compare with the last import
+		List<PathObject> annotations = new ArrayList<>(imageData.getHierarchy().getAnnotationObjects());
+		NdpaTask<NdpaImportManifest.Changes> task = new NdpaTask<>() {
+			@Override
+			protected NdpaImportManifest.Changes call() throws Exception {
+				return NdpaTools.readNDPAChanges(imageData, annotations, null, parallel, this);
+			}
+		};
+		// The hierarchy is only touched from the application thread, once everything has been read
+		task.setOnSucceeded(e -> applyChanges(imageData, task.getValue()));
+		runTask(qupath, task, "Import NDPA annotations", "Unable to import NDPA anntotations");
 	}
 
 	/**
 	 * Export to NDPA file
 	 */
 	private void exportNdpaCurrentViewer() {
-		try {
-			var qupath = QuPathGUI.getInstance();
-			var imageData = qupath.getImageData();
-			NdpaTools.writeNDPA(imageData);
-        } catch (Exception e) {
-			logger.error("Unable to export anntotations to NDPA", e);
-            e.printStackTrace();
+		var qupath = QuPathGUI.getInstance();
+		var imageData = qupath.getImageData();
+		if (imageData == null) {
+			Dialogs.showErrorMessage("Export annotations as NDPA", "No image is open!");
+			return;
+		}
+		boolean parallel = parallelProcessing.get();
+		// Take a snapshot of the annotations on the application thread
+		List<PathObject> annotations = new ArrayList<>(imageData.getHierarchy().getAnnotationObjects());
+		NdpaTask<Void> task = new NdpaTask<>() {
+			@Override
+			protected Void call() throws Exception {
+				NdpaTools.writeNDPAObjects(imageData, annotations, parallel, this);
+				return null;
+			}
+		};
+		runTask(qupath, task, "Export annotations as NDPA", "Unable to export anntotations to NDPA");
+	}
+
+	/**
+	 * Import the NDPA files of all the images in the current project
+	 */
+	private void importNdpaProject() {
+		var qupath = QuPathGUI.getInstance();
+		var project = qupath.getProject();
+		if (project == null) {
+			Dialogs.showErrorMessage("Import NDPA annotations for project", "No project is open!");
+			return;
+		}
+		var entries = getClosedEntries(qupath, project);
+		int nThreads = batchThreads.get();
+		NdpaTask<List<NdpaBatchResult>> task = new NdpaTask<>() {
+			@Override
+			protected List<NdpaBatchResult> call() throws Exception {
+				return NdpaProjectTools.importNDPA(entries, nThreads, this);
+			}
+		};
+		long startTime = System.currentTimeMillis();
+		task.setOnSucceeded(e -> {
+			qupath.refreshProject();
+			showBatchSummary("Import NDPA annotations for project", task.getValue(), System.currentTimeMillis() - startTime);
+		});
+		runTask(qupath, task, "Import NDPA annotations for project", "Unable to import NDPA annotations for project");
+	}
+
+	/**
+	 * Export the annotations of all the images in the current project to NDPA files.
+	 * The summary is also written next to the project file.
+	 */
+	private void exportNdpaProject() {
+		var qupath = QuPathGUI.getInstance();
+		var project = qupath.getProject();
+		if (project == null) {
+			Dialogs.showErrorMessage("Export NDPA annotations for project", "No project is open!");
+			return;
+		}
+		// Images open in a viewer may have unsaved changes, so they are exported from the viewer instead
+		var entries = getClosedEntries(qupath, project);
+		int nThreads = batchThreads.get();
+		NdpaTask<List<NdpaBatchResult>> task = new NdpaTask<>() {
+			@Override
+			protected List<NdpaBatchResult> call() throws Exception {
+				return NdpaProjectTools.exportNDPA(entries, nThreads, this);
+			}
+		};
+		long startTime = System.currentTimeMillis();
+		task.setOnSucceeded(e -> {
+			long elapsed = System.currentTimeMillis() - startTime;
+			Path projectPath = project.getPath();
+			if (projectPath != null) {
+				Path summaryPath = projectPath.resolveSibling("ndpa-export-" + System.currentTimeMillis() + ".txt");
+				try {
+					NdpaBatchResult.writeSummary(summaryPath, task.getValue(), elapsed);
+					logger.info("NDPA export summary written to {}", summaryPath);
+				} catch (IOException ex) {
+					logger.error("Unable to write NDPA export summary", ex);
+				}
+			}
+			showBatchSummary("Export NDPA annotations for project", task.getValue(), elapsed);
+		});
+		runTask(qupath, task, "Export NDPA annotations for project", "Unable to export NDPA annotations for project");
+	}
+
+	/**
+	 * Get the project entries that are not open in a viewer, since their saved data would be overwritten by the viewer.
+	 * @param qupath The QuPath GUI
+	 * @param project The project
+	 * @return The entries that can be processed in the background
+	 * @param <T> The image type
+	 */
+	private static <T> List<ProjectImageEntry<T>> getClosedEntries(QuPathGUI qupath, Project<T> project) {
+		List<ProjectImageEntry<T>> entries = new ArrayList<>(project.getImageList());
+		for (var viewer : qupath.getAllViewers()) {
+			var imageData = viewer.getImageData();
+			if (imageData == null)
+				continue;
+			@SuppressWarnings("unchecked")
+			var entry = project.getEntry((ImageData<T>) imageData);
+			if (entry != null && entries.remove(entry))
+				logger.warn("Skipping {}, which is open in a viewer", entry.getImageName());
+		}
+		return entries;
+	}
+
+	/**
+	 * Show the per-image results of a project-wide command
+	 * @param title The dialog title
+	 * @param results The results
+	 * @param elapsedMillis The time taken by the whole command
+	 */
+	private static void showBatchSummary(String title, List<NdpaBatchResult> results, long elapsedMillis) {
+		var textArea = new TextArea(NdpaBatchResult.summarize(results, elapsedMillis));
+		textArea.setEditable(false);
+		textArea.setPrefColumnCount(80);
+		Dialogs.builder()
+				.title(title)
+				.content(textArea)
+				.resizable()
+				.show();
+	}
+
+	/**
+	 * Run an NDPA task in the background, with a progress dialog that can be used to cancel it.
+	 * @param qupath The QuPath GUI
+	 * @param task The task to run
+	 * @param title The title of the progress dialog
+	 * @param errorMessage The message logged and shown if the task fails
+	 */
+	private void runTask(QuPathGUI qupath, NdpaTask<?> task, String title, String errorMessage) {
+		task.setOnFailed(e -> {
+			logger.error(errorMessage, task.getException());
+			Dialogs.showErrorMessage(title, errorMessage + ": " + task.getException().getLocalizedMessage());
+		});
+		task.setOnCancelled(e -> logger.info("{} cancelled", title));
+
+		ProgressDialog progress = new ProgressDialog(task);
+		progress.initOwner(qupath.getStage());
+		progress.setTitle(title);
+		progress.getDialogPane().setGraphic(null);
+		progress.getDialogPane().getButtonTypes().add(ButtonType.CANCEL);
+		progress.getDialogPane().lookupButton(ButtonType.CANCEL).addEventFilter(ActionEvent.ACTION, e -> {
+			task.cancel(false);
+			progress.setHeaderText("Cancelling...");
+			progress.getDialogPane().lookupButton(ButtonType.CANCEL).setDisable(true);
+			e.consume();
+		});
+		executor.submit(task);
+	}
+
+	/**
+	 * A background task reporting the NDPA progress (annotations and points processed)
+	 * through its message and progress properties.
+	 * @param <T> The result type
+	 */
+	private abstract static class NdpaTask<T> extends Task<T> implements NdpaProgressMonitor {
+
+		@Override
+		public void update(long annotations, long points, double progress) {
+			updateMessage(String.format("%d annotations, %d points", annotations, points));
+			updateProgress(progress, 1.0);
 		}
 	}
 
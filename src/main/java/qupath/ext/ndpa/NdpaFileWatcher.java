@@ -0,0 +1,196 @@
+package qupath.ext.ndpa;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches an NDPA file for changes made by other applications (e.g. NDP.view), using the NIO {@link WatchService}.
+ * <p>
+ * Bursts of events, as produced by an application saving a file in several writes, are coalesced: the callback
+ * only runs once the file has been quiet for a while. Changes made by the extension itself are ignored, as long
+ * as they were recorded with {@link #recordWrite(Path)}.
+ */
+class NdpaFileWatcher implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(NdpaFileWatcher.class);
+
+    // Size and modification time of the NDPA files last written by the extension
+    private static final Map<Path, FileState> ownWrites = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ndpa-watch-debounce");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path file;
+    private final long quietMillis;
+    private final Runnable onChange;
+    private final WatchService watchService;
+
+    private ScheduledFuture<?> pending;
+    private volatile boolean closed;
+
+    /**
+     * Start watching a file.
+     *
+     * @param file The file to watch (it doesn't need to exist yet, but its directory does)
+     * @param quietMillis How long the file should stay unchanged before the callback runs
+     * @param onChange The callback, called from a background thread
+     * @throws IOException if the directory of the file can't be watched
+     */
+    NdpaFileWatcher(Path file, long quietMillis, Runnable onChange) throws IOException {
+        this.file = file.toAbsolutePath().normalize();
+        this.quietMillis = quietMillis;
+        this.onChange = onChange;
+        this.watchService = this.file.getFileSystem().newWatchService();
+        try {
+            this.file.getParent().register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        } catch (IOException | RuntimeException e) {
+            watchService.close();
+            throw e;
+        }
+        Thread thread = new Thread(this::watch, "ndpa-watch-" + this.file.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+        logger.debug("Watching {}", this.file);
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    private void watch() {
+        try {
+            while (!closed) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW || file.getFileName().equals(event.context()))
+                        changed = true;
+                }
+                if (changed)
+                    schedule();
+                if (!key.reset()) {
+                    logger.warn("Stopped watching {}, its directory is no longer accessible", file);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            logger.debug("Stopped watching {}", file);
+        }
+    }
+
+    /**
+     * (Re)start the quiet period
+     */
+    private synchronized void schedule() {
+        if (pending != null)
+            pending.cancel(false);
+        pending = scheduler.schedule(this::fire, quietMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void fire() {
+        if (closed || !Files.isRegularFile(file))
+            return;
+        if (isOwnWrite(file)) {
+            logger.debug("Ignoring change to {}, written by the extension", file);
+            return;
+        }
+        logger.info("{} changed on disk", file);
+        try {
+            onChange.run();
+        } catch (RuntimeException e) {
+            logger.error("Unable to handle the change to " + file, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (this) {
+            if (pending != null)
+                pending.cancel(false);
+        }
+        watchService.close();
+    }
+
+    /**
+     * Record that the extension has just written a file, so that watchers don't react to it.
+     *
+     * @param file The file that was written
+     */
+    static void recordWrite(Path file) {
+        Path key = file.toAbsolutePath().normalize();
+        try {
+            ownWrites.put(key, FileState.of(key));
+        } catch (IOException e) {
+            ownWrites.remove(key);
+        }
+    }
+
+    /**
+     * Check whether a file is still exactly as the extension last wrote it
+     */
+    private static boolean isOwnWrite(Path file) {
+        FileState state = ownWrites.get(file);
+        if (state == null)
+            return false;
+        try {
+            if (state.equals(FileState.of(file)))
+                return true;
+        } catch (IOException e) {
+            logger.debug("Unable to read the attributes of {}: {}", file, e.getMessage());
+        }
+        // Someone else has written the file since
+        ownWrites.remove(file, state);
+        return false;
+    }
+
+    /**
+     * Size and modification time of a file
+     */
+    private static class FileState {
+
+        private final long size;
+        private final long lastModified;
+
+        private FileState(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        private static FileState of(Path file) throws IOException {
+            return new FileState(Files.size(file), Files.getLastModifiedTime(file).toMillis());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof FileState other && size == other.size && lastModified == other.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(lastModified);
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package qupath.ext.ndpa;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.ext.ndpa.core.NdpaAnnotation;
+import qupath.ext.ndpa.core.NdpiImageInfo;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+
+/**
+ * Record of what was imported from the NDPA file of an image, so that it can be imported again incrementally.
+ * <p>
+ * The manifest holds a hash of the NDPA file and, for each {@code ndpviewstate}, its id, a hash of its content
+ * and the ID of the object created from it. It is stored as a property of the {@link ImageData}, so that it is
+ * saved along with the objects. On re-import, an unchanged file is skipped without being parsed; otherwise only
+ * the annotations that were added, changed or removed since the last import touch the hierarchy.
+ * <p>
+ * Annotations are matched by id and content first, then by content alone, so a file renumbered by another
+ * application (or by an export) still matches. Imported objects that were deleted in QuPath are not brought back
+ * unless their annotation changes in the file (or the import is asked to restore them), and objects edited in QuPath
+ * are kept unless their annotation does.
+ * <p>
+ * An exported object may be written as several {@code ndpviewstate}s (one per polygon, plus its holes), which all
+ * refer to the same object. If any of them changes, the object is replaced by new objects created from all of its
+ * current annotations, so that the unchanged ones don't keep the old object alongside the new ones.
+ */
+public class NdpaImportManifest {
+
+    private static final Logger logger = LoggerFactory.getLogger(NdpaImportManifest.class);
+
+    /**
+     * Key of the ImageData property holding the manifest.
+     */
+    public static final String PROPERTY_KEY = "ndpa.importManifest";
+
+    private static final String VERSION = "1";
+
+    private final String fileHash;
+    private final String settings;
+    private final List<Entry> entries;
+
+    // Lookups for matching the annotations of a new import, built on demand
+    private Map<String, Entry> byIdAndContent;
+    private Map<Long, List<Entry>> byContent;
+    private Set<String> sharedObjects;
+
+    private NdpaImportManifest(String fileHash, String settings, List<Entry> entries) {
+        this.fileHash = fileHash;
+        this.settings = settings;
+        this.entries = entries;
+    }
+
+    /**
+     * Read the manifest of an image.
+     *
+     * @param imageData the image data
+     * @return the manifest, or null if the image has no (valid) manifest
+     */
+    static NdpaImportManifest read(ImageData<?> imageData) {
+        Object value = imageData.getProperty(PROPERTY_KEY);
+        if (!(value instanceof String text))
+            return null;
+        String[] lines = text.split("\n");
+        String[] header = lines[0].split(";", -1);
+        if (header.length != 3 || !VERSION.equals(header[0])) {
+            logger.debug("Ignoring NDPA import manifest with header {}", lines[0]);
+            return null;
+        }
+        List<Entry> entries = new ArrayList<>(lines.length - 1);
+        try {
+            for (int i = 1; i < lines.length; i++) {
+                // The id comes first and could contain anything, the other fields are hex and an object ID
+                String line = lines[i];
+                int objectSep = line.lastIndexOf(';');
+                int hashSep = line.lastIndexOf(';', objectSep - 1);
+                entries.add(new Entry(line.substring(0, hashSep),
+                        Long.parseUnsignedLong(line.substring(hashSep + 1, objectSep), 16),
+                        line.substring(objectSep + 1)));
+            }
+        } catch (RuntimeException e) {
+            logger.debug("Invalid NDPA import manifest: {}", e.getMessage());
+            return null;
+        }
+        return new NdpaImportManifest(header[1], header[2], entries);
+    }
+
+    /**
+     * Get the settings an import depends on, besides the content of the file
+     *
+     * @param imageInfo the image info used to convert the coordinates
+     * @param annotationClass the class assigned to the annotations, may be null
+     * @return the settings, as stored in the manifest
+     */
+    static String getSettings(NdpiImageInfo imageInfo, PathClass annotationClass) {
+        return Integer.toHexString(imageInfo.hashCode()) + "/" + (annotationClass == null ? "" : annotationClass.toString());
+    }
+
+    /**
+     * Compute the SHA-256 hash of a file.
+     *
+     * @param path the file
+     * @return the hash, as a hex string
+     * @throws IOException if the file could not be read
+     */
+    static String hashFile(Path path) throws IOException {
+        MessageDigest digest = createDigest();
+        byte[] buffer = new byte[65536];
+        try (InputStream stream = Files.newInputStream(path)) {
+            int n;
+            while ((n = stream.read(buffer)) > 0)
+                digest.update(buffer, 0, n);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Check whether a file was imported with this manifest, with the same settings
+     *
+     * @param fileHash the hash of the NDPA file
+     * @param settings the import settings
+     * @return true if there is nothing to import
+     */
+    boolean isUpToDate(String fileHash, String settings) {
+        return this.fileHash.equals(fileHash) && this.settings.equals(settings);
+    }
+
+    String getSettings() {
+        return settings;
+    }
+
+    /**
+     * Claim the entry of an annotation, if it was already imported and hasn't changed since.
+     * An entry can only be claimed once. This can be called from several threads at the same time.
+     *
+     * @param ndpa the annotation
+     * @param contentHash the content hash of the annotation
+     * @return the entry, or null if the annotation is new or has changed
+     */
+    Entry claim(NdpaAnnotation ndpa, long contentHash) {
+        Entry entry = byIdAndContent.get(ndpa.getId() + ";" + contentHash);
+        if (entry != null && entry.claimed.compareAndSet(false, true))
+            return entry;
+        for (Entry candidate : byContent.getOrDefault(contentHash, List.of())) {
+            if (candidate.claimed.compareAndSet(false, true))
+                return candidate;
+        }
+        return null;
+    }
+
+    /**
+     * Prepare for matching a new import, once all the entries are known
+     */
+    private void index() {
+        byIdAndContent = new HashMap<>();
+        byContent = new HashMap<>();
+        sharedObjects = new HashSet<>();
+        Set<String> objectIds = new HashSet<>();
+        for (Entry entry : entries) {
+            entry.claimed.set(false);
+            byIdAndContent.putIfAbsent(entry.id + ";" + entry.contentHash, entry);
+            byContent.computeIfAbsent(entry.contentHash, k -> new ArrayList<>()).add(entry);
+            if (!objectIds.add(entry.objectId))
+                sharedObjects.add(entry.objectId);
+        }
+    }
+
+    /**
+     * Get the objects with several entries, of which some weren't claimed by the new import
+     */
+    private Set<String> getPartlyChangedObjects() {
+        Set<String> changed = new HashSet<>();
+        for (Entry entry : entries) {
+            if (!entry.claimed.get() && sharedObjects.contains(entry.objectId))
+                changed.add(entry.objectId);
+        }
+        return changed;
+    }
+
+    private String toPropertyValue() {
+        StringBuilder sb = new StringBuilder(64 + entries.size() * 64);
+        sb.append(VERSION).append(';').append(fileHash).append(';').append(settings);
+        for (Entry entry : entries) {
+            sb.append('\n').append(entry.id)
+                    .append(';').append(Long.toHexString(entry.contentHash))
+                    .append(';').append(entry.objectId);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * One imported {@code ndpviewstate}
+     */
+    static class Entry {
+
+        private final String id;
+        private final long contentHash;
+        private final String objectId;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+
+        private Entry(String id, long contentHash, String objectId) {
+            this.id = id == null ? "" : id;
+            this.contentHash = contentHash;
+            this.objectId = objectId;
+        }
+
+        String getObjectId() {
+            return objectId;
+        }
+    }
+
+    /**
+     * Collects the matches and the new entries while an NDPA file is being imported.
+     * <p>
+     * The converter of an import either returns the existing object of an unchanged annotation, or a new object.
+     */
+    static class Sync {
+
+        private final NdpaImportManifest previous;
+        private final NdpaImportManifest matching;
+        private final boolean restoreDeleted;
+        private final Map<String, PathObject> existing = new HashMap<>();
+        private final ConcurrentLinkedQueue<Entry> newEntries = new ConcurrentLinkedQueue<>();
+        // Unchanged annotations of objects with several entries, in case the object has to be rebuilt
+        private final ConcurrentLinkedQueue<Claim> sharedClaims = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Start an incremental import.
+         *
+         * @param previous the manifest of the last import, or null to import everything
+         * @param settings the settings of this import; if they changed, all the objects of the last import are replaced
+         * @param existingObjects the objects currently in the image
+         * @param restoreDeleted if true, the objects of unchanged annotations that were deleted in QuPath are created again
+         */
+        Sync(NdpaImportManifest previous, String settings, Collection<? extends PathObject> existingObjects,
+             boolean restoreDeleted) {
+            this.previous = previous;
+            this.restoreDeleted = restoreDeleted;
+            this.matching = previous == null || !previous.settings.equals(settings) ? null : previous;
+            if (matching != null)
+                matching.index();
+            for (PathObject pathObject : existingObjects)
+                existing.put(pathObject.getID().toString(), pathObject);
+        }
+
+        /**
+         * Get the object of an annotation: the existing one if it hasn't changed since the last import
+         * (which is null if it was deleted, unless deleted objects are restored), or a new one.
+         * This can be called from several threads at the same time.
+         *
+         * @param ndpa the annotation
+         * @param converter the function creating a new object from an annotation
+         * @return the object, or null if the annotation is not supported or its object was deleted
+         */
+        PathObject getObject(NdpaAnnotation ndpa, Function<NdpaAnnotation, PathObject> converter) {
+            long contentHash = ndpa.getContentHash();
+            Entry entry = matching == null ? null : matching.claim(ndpa, contentHash);
+            if (entry != null) {
+                PathObject pathObject = existing.get(entry.objectId);
+                if (pathObject != null || !restoreDeleted) {
+                    newEntries.add(new Entry(ndpa.getId(), contentHash, entry.objectId));
+                    if (matching.sharedObjects.contains(entry.objectId))
+                        sharedClaims.add(new Claim(ndpa, contentHash, entry.objectId, converter));
+                    return pathObject;
+                }
+            }
+            PathObject pathObject = converter.apply(ndpa);
+            if (pathObject != null)
+                newEntries.add(new Entry(ndpa.getId(), contentHash, pathObject.getID().toString()));
+            return pathObject;
+        }
+
+        /**
+         * Work out the changes, once the whole file has been read.
+         *
+         * @param fileHash the hash of the NDPA file
+         * @param settings the import settings
+         * @param pathObjects the objects returned by {@link #getObject(NdpaAnnotation, Function)}, without nulls
+         * @return the changes to apply to the image
+         */
+        Changes finish(String fileHash, String settings, List<PathObject> pathObjects) {
+            // Objects written as several annotations, of which only some are unchanged
+            Set<String> rebuilt = matching == null ? Set.of() : matching.getPartlyChangedObjects();
+
+            List<PathObject> added = new ArrayList<>();
+            int unchanged = 0;
+            for (PathObject pathObject : pathObjects) {
+                String objectId = pathObject.getID().toString();
+                if (!existing.containsKey(objectId))
+                    added.add(pathObject);
+                else if (!rebuilt.contains(objectId))
+                    unchanged++;
+            }
+
+            List<Entry> entries = new ArrayList<>(newEntries.size());
+            for (Entry entry : newEntries) {
+                if (!rebuilt.contains(entry.objectId))
+                    entries.add(entry);
+            }
+            // The unchanged annotations of these objects are created again, like the changed ones
+            for (Claim claim : sharedClaims) {
+                if (!rebuilt.contains(claim.objectId))
+                    continue;
+                PathObject pathObject = claim.converter.apply(claim.ndpa);
+                if (pathObject != null) {
+                    added.add(pathObject);
+                    entries.add(new Entry(claim.ndpa.getId(), claim.contentHash, pathObject.getID().toString()));
+                }
+            }
+
+            // Objects of annotations that are gone or have changed, and that are still in the image
+            List<PathObject> removed = new ArrayList<>();
+            if (previous != null) {
+                Set<String> kept = new HashSet<>();
+                for (Entry entry : entries)
+                    kept.add(entry.objectId);
+                for (Entry entry : previous.entries) {
+                    PathObject pathObject = existing.get(entry.objectId);
+                    // Objects with several entries are only removed once
+                    if (pathObject != null && kept.add(entry.objectId))
+                        removed.add(pathObject);
+                }
+            }
+            var manifest = new NdpaImportManifest(fileHash, settings, entries);
+            return new Changes(manifest, added, removed, unchanged);
+        }
+    }
+
+    /**
+     * An unchanged annotation of an object with several entries
+     */
+    private static class Claim {
+
+        private final NdpaAnnotation ndpa;
+        private final long contentHash;
+        private final String objectId;
+        private final Function<NdpaAnnotation, PathObject> converter;
+
+        private Claim(NdpaAnnotation ndpa, long contentHash, String objectId, Function<NdpaAnnotation, PathObject> converter) {
+            this.ndpa = ndpa;
+            this.contentHash = contentHash;
+            this.objectId = objectId;
+            this.converter = converter;
+        }
+    }
+
+    /**
+     * Changes to apply to an image after an incremental import
+     */
+    public static class Changes {
+
+        private final NdpaImportManifest manifest;
+        private final List<PathObject> added;
+        private final List<PathObject> removed;
+        private final int unchanged;
+
+        private Changes(NdpaImportManifest manifest, List<PathObject> added, List<PathObject> removed, int unchanged) {
+            this.manifest = manifest;
+            this.added = added;
+            this.removed = removed;
+            this.unchanged = unchanged;
+        }
+
+        /**
+         * No changes, because the NDPA file hasn't changed since the last import
+         */
+        static Changes none(NdpaImportManifest manifest) {
+            return new Changes(manifest, List.of(), List.of(), manifest.entries.size());
+        }
+
+        /**
+         * @return the objects to add: new annotations, and new versions of changed annotations
+         */
+        public List<PathObject> getAdded() {
+            return added;
+        }
+
+        /**
+         * @return the objects to remove: those of deleted annotations, and old versions of changed annotations
+         */
+        public List<PathObject> getRemoved() {
+            return removed;
+        }
+
+        /**
+         * @return the number of annotations that were already imported and haven't changed
+         */
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * @return true if the hierarchy doesn't need to change
+         */
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+
+        /**
+         * Apply the changes to an image and store the new manifest.
+         * This should be called from the thread allowed to modify the hierarchy (e.g. the application thread).
+         *
+         * @param imageData the image data
+         */
+        public void apply(ImageData<?> imageData) {
+            if (!removed.isEmpty())
+                imageData.getHierarchy().removeObjects(removed, true);
+            if (!added.isEmpty())
+                NdpaTools.addObjects(imageData, added);
+            String value = manifest.toPropertyValue();
+            if (!Objects.equals(value, imageData.getProperty(PROPERTY_KEY)))
+                imageData.setProperty(PROPERTY_KEY, value);
+        }
+
+        @Override
+        public String toString() {
+            return added.size() + " added, " + removed.size() + " removed, " + unchanged + " unchanged";
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package qupath.ext.ndpa;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters behind {@link NdpaMetricsMXBean}, updated by {@link NdpaTools} from any thread.
+ */
+class NdpaMetrics implements NdpaMetricsMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(NdpaMetrics.class);
+
+    private final NdpaOffsetCache offsetCache;
+
+    private final LongAdder filesImported = new LongAdder();
+    private final LongAdder filesExported = new LongAdder();
+    private final LongAdder importFailures = new LongAdder();
+    private final LongAdder exportFailures = new LongAdder();
+    private final LongAdder annotationsImported = new LongAdder();
+    private final LongAdder annotationsExported = new LongAdder();
+    private final LongAdder verticesImported = new LongAdder();
+    private final LongAdder verticesExported = new LongAdder();
+    private final LongAdder offsetLookupFailures = new LongAdder();
+
+    private final Map<NdpaStageEvent.Stage, StageRecorder> stages = new EnumMap<>(NdpaStageEvent.Stage.class);
+
+    private NdpaMetrics(NdpaOffsetCache offsetCache) {
+        this.offsetCache = offsetCache;
+        for (var stage : NdpaStageEvent.Stage.values())
+            stages.put(stage, new StageRecorder());
+    }
+
+    /**
+     * Create the metrics and register them with the platform MBean server.
+     * <p>
+     * The metrics are still collected if they can't be registered, e.g. because another copy of the
+     * extension already registered its own.
+     *
+     * @param offsetCache The cache of slide offsets, for the hit rate
+     * @return The metrics
+     */
+    static NdpaMetrics register(NdpaOffsetCache offsetCache) {
+        NdpaMetrics metrics = new NdpaMetrics(offsetCache);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (InstanceAlreadyExistsException e) {
+            logger.debug("NDPA metrics are already registered as {}", OBJECT_NAME);
+        } catch (JMException | RuntimeException e) {
+            logger.warn("Unable to register the NDPA metrics: {}", e.getMessage());
+        }
+        return metrics;
+    }
+
+    void recordStage(NdpaStageEvent.Stage stage, long nanos) {
+        stages.get(stage).record(nanos);
+    }
+
+    void recordImport(long annotations, long vertices) {
+        filesImported.increment();
+        annotationsImported.add(annotations);
+        verticesImported.add(vertices);
+    }
+
+    void recordExport(long annotations, long vertices) {
+        filesExported.increment();
+        annotationsExported.add(annotations);
+        verticesExported.add(vertices);
+    }
+
+    void recordImportFailure() {
+        importFailures.increment();
+    }
+
+    void recordExportFailure() {
+        exportFailures.increment();
+    }
+
+    void recordOffsetLookupFailure() {
+        offsetLookupFailures.increment();
+    }
+
+    @Override
+    public long getFilesImported() {
+        return filesImported.sum();
+    }
+
+    @Override
+    public long getFilesExported() {
+        return filesExported.sum();
+    }
+
+    @Override
+    public long getImportFailures() {
+        return importFailures.sum();
+    }
+
+    @Override
+    public long getExportFailures() {
+        return exportFailures.sum();
+    }
+
+    @Override
+    public long getAnnotationsImported() {
+        return annotationsImported.sum();
+    }
+
+    @Override
+    public long getAnnotationsExported() {
+        return annotationsExported.sum();
+    }
+
+    @Override
+    public long getVerticesImported() {
+        return verticesImported.sum();
+    }
+
+    @Override
+    public long getVerticesExported() {
+        return verticesExported.sum();
+    }
+
+    @Override
+    public long getOffsetCacheHits() {
+        return offsetCache.getMemoryHits() + offsetCache.getPropertyHits();
+    }
+
+    @Override
+    public long getOffsetCacheMisses() {
+        return offsetCache.getMisses();
+    }
+
+    @Override
+    public double getOffsetCacheHitRate() {
+        long hits = getOffsetCacheHits();
+        long total = hits + getOffsetCacheMisses();
+        return total == 0 ? Double.NaN : hits / (double) total;
+    }
+
+    @Override
+    public long getOffsetLookupFailures() {
+        return offsetLookupFailures.sum();
+    }
+
+    @Override
+    public Map<String, NdpaStageStatistics> getStageStatistics() {
+        Map<String, NdpaStageStatistics> map = new LinkedHashMap<>();
+        for (var entry : stages.entrySet())
+            map.put(entry.getKey().name(), entry.getValue().getStatistics());
+        return map;
+    }
+
+    /**
+     * Latencies of one stage, in a log-linear histogram of microseconds with 8 buckets per power of two
+     */
+    private static class StageRecorder {
+
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int N_BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray buckets = new AtomicLongArray(N_BUCKETS);
+
+        private void record(long nanos) {
+            nanos = Math.max(nanos, 0);
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            buckets.incrementAndGet(getBucket(nanos / 1000));
+        }
+
+        private NdpaStageStatistics getStatistics() {
+            long[] counts = new long[N_BUCKETS];
+            long n = 0;
+            for (int i = 0; i < N_BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                n += counts[i];
+            }
+            // Buckets only give an upper bound, which may be above the largest value recorded
+            double maxMillis = maxNanos.get() / 1e6;
+            return new NdpaStageStatistics(count.sum(), totalNanos.sum() / 1e6,
+                    Math.min(getPercentileMillis(counts, n, 0.5), maxMillis),
+                    Math.min(getPercentileMillis(counts, n, 0.99), maxMillis), maxMillis);
+        }
+
+        private static double getPercentileMillis(long[] counts, long n, double percentile) {
+            if (n == 0)
+                return Double.NaN;
+            long rank = Math.max((long) Math.ceil(percentile * n), 1);
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= rank)
+                    return getUpperBound(i) / 1000.0;
+            }
+            return getUpperBound(counts.length - 1) / 1000.0;
+        }
+
+        private static int getBucket(long micros) {
+            if (micros < SUB_BUCKETS)
+                return (int) micros;
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int) ((micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+        }
+
+        /**
+         * Get the largest value (in microseconds) falling into a bucket
+         */
+        private static long getUpperBound(int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int exponent = bucket / SUB_BUCKETS - 1 + SUB_BITS;
+            int sub = bucket % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+}
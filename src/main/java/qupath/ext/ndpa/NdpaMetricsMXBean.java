@@ -0,0 +1,88 @@
+package qupath.ext.ndpa;
+
+import java.util.Map;
+
+/**
+ * Operational counters of the NDPA extension, exposed through JMX under {@link #OBJECT_NAME}.
+ * <p>
+ * The counters are collected by {@link NdpaTools} for every NDPA file read or written, whether from the GUI,
+ * a script, a project batch or the command line, and cover the lifetime of the JVM.
+ */
+public interface NdpaMetricsMXBean {
+
+    /**
+     * Name the MBean is registered under in the platform MBean server.
+     */
+    String OBJECT_NAME = "qupath.ext.ndpa:type=NdpaMetrics";
+
+    /**
+     * @return the number of NDPA files read successfully
+     */
+    long getFilesImported();
+
+    /**
+     * @return the number of NDPA files written successfully
+     */
+    long getFilesExported();
+
+    /**
+     * @return the number of NDPA files that could not be read (cancelled imports are not counted)
+     */
+    long getImportFailures();
+
+    /**
+     * @return the number of NDPA files that could not be written (cancelled exports are not counted)
+     */
+    long getExportFailures();
+
+    /**
+     * @return the number of annotations read from NDPA files
+     */
+    long getAnnotationsImported();
+
+    /**
+     * @return the number of annotations written to NDPA files
+     */
+    long getAnnotationsExported();
+
+    /**
+     * @return the number of vertices read from NDPA files
+     */
+    long getVerticesImported();
+
+    /**
+     * @return the number of vertices written to NDPA files
+     */
+    long getVerticesExported();
+
+    /**
+     * @return the number of slide offset lookups answered from memory or from the image data properties
+     */
+    long getOffsetCacheHits();
+
+    /**
+     * @return the number of slide offset lookups that had to read the image
+     */
+    long getOffsetCacheMisses();
+
+    /**
+     * @return the fraction of slide offset lookups answered by the cache, or NaN if there weren't any
+     */
+    double getOffsetCacheHitRate();
+
+    /**
+     * @return the number of images whose slide offsets could not be read
+     */
+    long getOffsetLookupFailures();
+
+    /**
+     * Get the latencies of each stage of the imports and exports, keyed by stage name
+     * (PARSE, OFFSET, ROI_BUILD, HIERARCHY_INSERT, SIMPLIFY, WRITE).
+     * <p>
+     * Parsing, ROI building, simplification and writing are timed per chunk of annotations, the other
+     * stages once per image.
+     *
+     * @return the statistics of each stage
+     */
+    Map<String, NdpaStageStatistics> getStageStatistics();
+}
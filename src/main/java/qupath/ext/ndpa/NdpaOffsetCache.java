@@ -0,0 +1,174 @@
+package qupath.ext.ndpa;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.common.GeneralTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+
+/**
+ * Two-tier cache for the offset of the image centre from the slide centre.
+ * <p>
+ * The first tier is an in-memory LRU map keyed by image URI and file modification time.
+ * The second tier is a property stored in the {@link ImageData}, so that it is saved along with
+ * the image data (e.g. in a QuPath project) and the offsets only need to be read once per slide.
+ * <p>
+ * Offsets are cached in nanometres, so changing the pixel calibration doesn't invalidate them.
+ */
+public class NdpaOffsetCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(NdpaOffsetCache.class);
+
+    /**
+     * Key of the ImageData property holding the offsets, as "lastModified;xOffsetNm;yOffsetNm".
+     */
+    public static final String PROPERTY_KEY = "ndpa.slideCentreOffset";
+
+    private final Map<String, double[]> cache;
+    private final BiConsumer<ImageData<?>, Runnable> propertyUpdater;
+
+    private long memoryHits;
+    private long propertyHits;
+    private long misses;
+
+    /**
+     * Create a new cache.
+     *
+     * @param maxEntries the maximum number of images kept in memory
+     */
+    public NdpaOffsetCache(int maxEntries) {
+        this(maxEntries, (imageData, update) -> update.run());
+    }
+
+    /**
+     * Create a new cache, updating the image data properties through the given function.
+     * <p>
+     * Setting a property marks the image data as changed, so it may need to happen on a specific thread,
+     * e.g. the JavaFX application thread for images open in a viewer.
+     *
+     * @param maxEntries the maximum number of images kept in memory
+     * @param propertyUpdater function running the update of the property of an image data
+     */
+    public NdpaOffsetCache(int maxEntries, BiConsumer<ImageData<?>, Runnable> propertyUpdater) {
+        this.propertyUpdater = propertyUpdater;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, double[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Get the offset of the image centre from the slide centre, loading it if it isn't cached yet.
+     *
+     * @param imageData the image data, used to store the offsets persistently
+     * @param loader function reading the offsets in nanometres from the server, may return null if they couldn't be read
+     * @return the x and y offsets in nanometres (either can be NaN), or null if they couldn't be read
+     */
+    public double[] getOffsetNm(ImageData<?> imageData, Function<ImageServer<?>, double[]> loader) {
+        ImageServer<?> server = imageData.getServer();
+        URI uri = server.getURIs().iterator().next();
+        long lastModified = getLastModified(uri);
+        String key = uri + "@" + lastModified;
+
+        synchronized (this) {
+            double[] offset = cache.get(key);
+            if (offset != null) {
+                memoryHits++;
+                return offset.clone();
+            }
+        }
+
+        double[] offset = parseProperty(imageData.getProperty(PROPERTY_KEY), lastModified);
+        if (offset != null) {
+            synchronized (this) {
+                propertyHits++;
+            }
+        } else {
+            synchronized (this) {
+                misses++;
+            }
+            offset = loader.apply(server);
+            if (offset == null)
+                return null;
+            String value = lastModified + ";" + offset[0] + ";" + offset[1];
+            // Only mark the image data as changed if the stored value really is different
+            propertyUpdater.accept(imageData, () -> {
+                if (!Objects.equals(value, imageData.getProperty(PROPERTY_KEY)))
+                    imageData.setProperty(PROPERTY_KEY, value);
+            });
+        }
+
+        synchronized (this) {
+            cache.put(key, offset.clone());
+        }
+        return offset;
+    }
+
+    /**
+     * Remove all entries from the in-memory tier.
+     */
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    /**
+     * @return the number of lookups found in memory
+     */
+    public synchronized long getMemoryHits() {
+        return memoryHits;
+    }
+
+    /**
+     * @return the number of lookups found in the image data properties
+     */
+    public synchronized long getPropertyHits() {
+        return propertyHits;
+    }
+
+    /**
+     * @return the number of lookups that had to read the offsets from the image
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private static double[] parseProperty(Object value, long lastModified) {
+        if (!(value instanceof String))
+            return null;
+        String[] parts = ((String) value).split(";");
+        if (parts.length != 3)
+            return null;
+        try {
+            if (Long.parseLong(parts[0]) != lastModified)
+                return null;
+            return new double[] { Double.parseDouble(parts[1]), Double.parseDouble(parts[2]) };
+        } catch (NumberFormatException e) {
+            logger.debug("Invalid cached offset: {}", value);
+            return null;
+        }
+    }
+
+    private static long getLastModified(URI uri) {
+        Path path = GeneralTools.toPath(uri);
+        if (path == null)
+            return -1;
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
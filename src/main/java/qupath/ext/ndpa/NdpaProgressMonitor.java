@@ -0,0 +1,26 @@
+package qupath.ext.ndpa;
+
+/**
+ * Receives progress updates from a long-running NDPA import or export, and can ask for it to be cancelled.
+ */
+public interface NdpaProgressMonitor {
+
+    /**
+     * Called regularly while annotations are being read or written.
+     *
+     * @param annotations the number of annotations processed so far
+     * @param points the number of points processed so far
+     * @param progress the fraction of the work done, between 0 and 1
+     */
+    void update(long annotations, long points, double progress);
+
+    /**
+     * Check whether the operation should stop. If so, it is abandoned with a
+     * {@link java.util.concurrent.CancellationException}.
+     *
+     * @return true if the operation should be cancelled
+     */
+    default boolean isCancelled() {
+        return false;
+    }
+}
@@ -0,0 +1,133 @@
+package qupath.ext.ndpa;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Batch NDPA operations over the images of a QuPath project.
+ * <p>
+ * Images are processed on a bounded pool of worker threads, each one opening a single image,
+ * working on its saved data and closing it again.
+ */
+public class NdpaProjectTools {
+
+    private static final Logger logger = LoggerFactory.getLogger(NdpaProjectTools.class);
+
+    private NdpaProjectTools() {
+    }
+
+    /**
+     * Import the sidecar NDPA file (image.ndpi.ndpa) of each project entry, and save the annotations
+     * in the entry's image data. Entries without an NDPA file are skipped without opening the image.
+     * Entries that were imported before are only updated with what changed in their NDPA file since.
+     * <p>
+     * Entries should not be open in a viewer at the same time, since the saved data would be overwritten.
+     *
+     * @param <T> the image type
+     * @param entries the project entries
+     * @param nThreads the maximum number of images processed at the same time
+     * @param monitor optional progress monitor, may be null; it is called from the worker threads
+     * @return one result per entry, in the order of the entries
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+     */
+    public static <T> List<NdpaBatchResult> importNDPA(Collection<ProjectImageEntry<T>> entries, int nThreads,
+                                                       NdpaProgressMonitor monitor) throws InterruptedException {
+        return NdpaBatch.run("import", entries, ProjectImageEntry::getImageName, nThreads, monitor, NdpaProjectTools::importEntry);
+    }
+
+    private static <T> NdpaBatchResult importEntry(ProjectImageEntry<T> entry, NdpaBatch.ImageMonitor monitor) throws Exception {
+        String name = entry.getImageName();
+        File ndpaFile = getNdpaFile(entry);
+        if (ndpaFile == null || !ndpaFile.exists())
+            return new NdpaBatchResult(name, NdpaBatchResult.Status.SKIPPED, 0, 0, 0, "No NDPA file");
+
+        long startTime = System.currentTimeMillis();
+        ImageData<T> imageData = entry.readImageData();
+        try {
+            var changes = NdpaTools.readNDPAChanges(imageData, imageData.getHierarchy().getAnnotationObjects(), null, false, monitor);
+            changes.apply(imageData);
+            // The offsets may have been cached in the image data, even if no annotation has changed
+            if (!changes.isEmpty() || imageData.isChanged())
+                entry.saveImageData(imageData);
+            // Like the points, the annotations are counted as read from the file, whether they changed or not
+            return new NdpaBatchResult(name, NdpaBatchResult.Status.SUCCESS, monitor.getAnnotations(),
+                    monitor.getPoints(), System.currentTimeMillis() - startTime, changes.toString());
+        } finally {
+            imageData.getServer().close();
+        }
+    }
+
+    /**
+     * Export the annotations of each project entry to its sidecar NDPA file (image.ndpi.ndpa), backing up
+     * any existing file. Entries without saved data, or that are not NDPI images, are skipped.
+     * <p>
+     * Each image is isolated in its own worker: it is opened, exported and closed again, so at most
+     * {@code nThreads} images are held in memory at the same time and a failure only affects that image.
+     *
+     * @param <T> the image type
+     * @param entries the project entries
+     * @param nThreads the maximum number of images processed at the same time
+     * @param monitor optional progress monitor, may be null; it is called from the worker threads
+     * @return one result per entry, in the order of the entries
+     * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+     */
+    public static <T> List<NdpaBatchResult> exportNDPA(Collection<ProjectImageEntry<T>> entries, int nThreads,
+                                                       NdpaProgressMonitor monitor) throws InterruptedException {
+        return NdpaBatch.run("export", entries, ProjectImageEntry::getImageName, nThreads, monitor, NdpaProjectTools::exportEntry);
+    }
+
+    private static <T> NdpaBatchResult exportEntry(ProjectImageEntry<T> entry, NdpaBatch.ImageMonitor monitor) throws Exception {
+        String name = entry.getImageName();
+        if (!entry.hasImageData())
+            return new NdpaBatchResult(name, NdpaBatchResult.Status.SKIPPED, 0, 0, 0, "No saved data");
+        if (getNdpaFile(entry) == null)
+            return new NdpaBatchResult(name, NdpaBatchResult.Status.SKIPPED, 0, 0, 0, "Not an NDPI image");
+
+        long startTime = System.currentTimeMillis();
+        ImageData<T> imageData = entry.readImageData();
+        try {
+            var annotations = imageData.getHierarchy().getAnnotationObjects();
+            if (annotations.isEmpty())
+                return new NdpaBatchResult(name, NdpaBatchResult.Status.SKIPPED, 0, 0,
+                        System.currentTimeMillis() - startTime, "No annotations");
+            NdpaTools.writeNDPAObjects(imageData, annotations, false, monitor);
+            // The export is recorded in the import manifest, so that the annotations aren't imported back
+            if (imageData.isChanged())
+                entry.saveImageData(imageData);
+            return new NdpaBatchResult(name, NdpaBatchResult.Status.SUCCESS, monitor.getAnnotations(),
+                    monitor.getPoints(), System.currentTimeMillis() - startTime, null);
+        } finally {
+            imageData.getServer().close();
+        }
+    }
+
+    /**
+     * Get the NDPA file of a project entry, without opening the image
+     *
+     * @param entry The project entry
+     * @return The NDPA file, or null if the entry is not a local NDPI file
+     */
+    static File getNdpaFile(ProjectImageEntry<?> entry) {
+        try {
+            for (URI uri : entry.getURIs()) {
+                try {
+                    return NdpaTools.getNdpaFile(uri);
+                } catch (IOException e) {
+                    logger.debug("{}: {}", entry.getImageName(), e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to get the URIs of {}: {}", entry.getImageName(), e.getMessage());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,120 @@
+package qupath.ext.ndpa;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder event covering one stage of an NDPA import or export.
+ * <p>
+ * Stages that run while the file is being streamed (parsing, ROI building, simplification and writing) are
+ * recorded once per chunk of annotations, so the events of one file add up to the time spent in each stage.
+ * The latency of each stage is also added to the {@link NdpaMetricsMXBean} counters.
+ * Nothing is recorded unless a recording with the {@code qupath.ext.ndpa.Stage} event is running, e.g.
+ * <pre>
+ * java -XX:StartFlightRecording:filename=ndpa.jfr,settings=profile ...
+ * </pre>
+ */
+@Name("qupath.ext.ndpa.Stage")
+@Label("NDPA Stage")
+@Category({"QuPath", "NDPA"})
+@Description("One stage of an NDPA import or export")
+@StackTrace(false)
+class NdpaStageEvent extends Event {
+
+    /**
+     * Stages of an import or export
+     */
+    enum Stage {
+        /**
+         * Reading annotations from the NDPA file
+         */
+        PARSE,
+        /**
+         * Reading the slide centre offsets of the image
+         */
+        OFFSET,
+        /**
+         * Creating ROIs and objects from the annotations
+         */
+        ROI_BUILD,
+        /**
+         * Adding the imported objects to the hierarchy
+         */
+        HIERARCHY_INSERT,
+        /**
+         * Simplifying the outlines of the objects to export
+         */
+        SIMPLIFY,
+        /**
+         * Writing annotations to the NDPA file
+         */
+        WRITE
+    }
+
+    @Label("Stage")
+    private final String stage;
+
+    @Label("File")
+    @Description("The NDPA file, or the image for stages that don't touch the file")
+    private final String file;
+
+    @Label("Annotations")
+    private long annotations;
+
+    @Label("Vertices")
+    private long vertices;
+
+    @Label("Bytes")
+    @DataAmount
+    private long bytes;
+
+    // Not part of the recording: the metrics need the stage and the duration even when the event is disabled
+    private final transient Stage stageValue;
+    private transient long startNanos;
+
+    private NdpaStageEvent(Stage stage, String file) {
+        this.stage = stage.name();
+        this.stageValue = stage;
+        this.file = file;
+    }
+
+    /**
+     * Create an event and start timing it
+     *
+     * @param stage The stage
+     * @param file The file or image the stage works on
+     * @return The event
+     */
+    static NdpaStageEvent start(Stage stage, String file) {
+        NdpaStageEvent event = new NdpaStageEvent(stage, file);
+        event.startNanos = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Stop timing the event, add it to the metrics, and commit it if it is enabled and long enough
+     *
+     * @param annotations The number of annotations processed
+     * @param vertices The number of vertices processed
+     * @param bytes The number of bytes read or written
+     * @return The duration of the stage in nanoseconds
+     */
+    long finish(long annotations, long vertices, long bytes) {
+        end();
+        long nanos = System.nanoTime() - startNanos;
+        NdpaTools.metrics.recordStage(stageValue, nanos);
+        if (shouldCommit()) {
+            this.annotations = annotations;
+            this.vertices = vertices;
+            this.bytes = bytes;
+            commit();
+        }
+        return nanos;
+    }
+}
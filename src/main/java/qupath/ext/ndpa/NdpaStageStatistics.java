@@ -0,0 +1,70 @@
+package qupath.ext.ndpa;
+
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Latency statistics of one stage of the NDPA imports and exports, as exposed by {@link NdpaMetricsMXBean}.
+ * <p>
+ * Percentiles come from a log-linear histogram, so they are accurate to about 12%.
+ */
+public class NdpaStageStatistics {
+
+    private final long count;
+    private final double totalMillis;
+    private final double p50Millis;
+    private final double p99Millis;
+    private final double maxMillis;
+
+    /**
+     * Create the statistics of a stage.
+     *
+     * @param count the number of times the stage ran
+     * @param totalMillis the cumulative time spent in the stage
+     * @param p50Millis the median latency
+     * @param p99Millis the 99th percentile latency
+     * @param maxMillis the maximum latency
+     */
+    public NdpaStageStatistics(long count, double totalMillis, double p50Millis, double p99Millis, double maxMillis) {
+        this.count = count;
+        this.totalMillis = totalMillis;
+        this.p50Millis = p50Millis;
+        this.p99Millis = p99Millis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * Recreate the statistics from their open type, for JMX clients using an MXBean proxy.
+     *
+     * @param data the composite data
+     * @return the statistics
+     */
+    public static NdpaStageStatistics from(CompositeData data) {
+        return new NdpaStageStatistics((Long) data.get("count"), (Double) data.get("totalMillis"),
+                (Double) data.get("p50Millis"), (Double) data.get("p99Millis"), (Double) data.get("maxMillis"));
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getTotalMillis() {
+        return totalMillis;
+    }
+
+    public double getP50Millis() {
+        return p50Millis;
+    }
+
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    public double getMaxMillis() {
+        return maxMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d in %.1f ms (p50 %.3f ms, p99 %.3f ms, max %.3f ms)", count, totalMillis, p50Millis, p99Millis, maxMillis);
+    }
+}
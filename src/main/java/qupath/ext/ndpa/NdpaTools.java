@@ -1,32 +1,60 @@
 package qupath.ext.ndpa;
 
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
 import java.util.function.Function;
-import java.util.function.ToLongFunction;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 
+import javafx.application.Platform;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Polygon;
 import org.locationtech.jts.geom.util.PolygonExtracter;
 import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
+import qupath.ext.ndpa.core.NdpaAnnotation;
+import qupath.ext.ndpa.core.NdpaFastScanner;
+import qupath.ext.ndpa.core.NdpaOffsetProvider;
+import qupath.ext.ndpa.core.NdpaReader;
+import qupath.ext.ndpa.core.NdpaTransform;
+import qupath.ext.ndpa.core.NdpaWriter;
+import qupath.ext.ndpa.core.NdpiImageInfo;
 import qupath.lib.common.GeneralTools;
-import qupath.lib.geom.Point2;
+import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.tools.ColorToolsFX;
 import qupath.lib.images.ImageData;
 import qupath.lib.images.servers.ImageServer;
@@ -52,23 +80,94 @@ public class NdpaTools {
 
 	private static final Logger logger = LoggerFactory.getLogger(NdpaTools.class);
 
-    // Helper function
-    private static String getTextContent(Element parent, String tagName) {
-        NodeList list = parent.getElementsByTagName(tagName);
-        if (list.getLength() > 0) {
-            Node node = list.item(0);
-            return node.getTextContent().trim();
-        }
-        return "";
+    // Maximum number of annotations (or points) handed over to the fork-join pool in one go
+    private static final int CHUNK_ANNOTATIONS = 256;
+    private static final int CHUNK_POINTS = 65536;
+
+    // Number of objects simplified in one go on export
+    private static final int CHUNK_OBJECTS = 16;
+
+    // Slide centre offsets, per image
+    private static final NdpaOffsetCache offsetCache = new NdpaOffsetCache(256, NdpaTools::runForImage);
+
+    // Operational counters, exposed through JMX
+    static final NdpaMetrics metrics = NdpaMetrics.register(offsetCache);
+
+    // Default size of the export cache, in megabytes
+    static final int DEFAULT_EXPORT_CACHE_MB = 64;
+
+    // Serialised annotations of the last few exports, so unchanged objects aren't simplified again
+    private static final NdpaExportCache exportCache = new NdpaExportCache(DEFAULT_EXPORT_CACHE_MB * 1024L * 1024);
+
+    // The NDPI tags are read directly when possible, OpenSlide is the fallback
+    private static final NdpaOffsetProvider offsetProvider =
+            NdpaOffsetProvider.fromNdpiTags().orElse(NdpaTools::getOffsetUsingOpenSlide);
+
+    /**
+     * Get the size, pixel size and slide centre offset of an image.
+     * <p>
+     * The offsets are cached in memory and in the image data properties, so they are only read once per slide.
+     *
+     * @param imageData The image data, which must have a pixel size
+     * @return The image info
+     */
+    private static NdpiImageInfo getImageInfo(ImageData<?> imageData) {
+        ImageServer<?> server = imageData.getServer();
+        var cal = server.getPixelCalibration();
+        double[] offsetNm = offsetCache.getOffsetNm(imageData, NdpaTools::readSlideCentreOffsetNm);
+        return new NdpiImageInfo(server.getWidth(), server.getHeight(),
+                cal.getPixelWidthMicrons() * 1000, cal.getPixelHeightMicrons() * 1000,
+                offsetNm == null ? Double.NaN : offsetNm[0], offsetNm == null ? Double.NaN : offsetNm[1]);
     }
 
-    private static double[] getOffsetUsingOpenSlide(ImageServer<?> server) {
-        double centerX = server.getWidth() / 2.0;
-        double centerY = server.getHeight() / 2.0;
-        double pixelWidthNm = server.getPixelCalibration().getPixelWidthMicrons() * 1000;
-        double pixelHeightNm = server.getPixelCalibration().getPixelHeightMicrons() * 1000;
+    /**
+     * Run an update of an image data on the application thread if the image is open in a viewer,
+     * or straight away otherwise (e.g. for headless or project-wide operations).
+     *
+     * @param imageData The image data
+     * @param update The update
+     */
+    static void runForImage(ImageData<?> imageData, Runnable update) {
+        if (isOpenInViewer(imageData) && !Platform.isFxApplicationThread())
+            Platform.runLater(update);
+        else
+            update.run();
+    }
 
+    private static boolean isOpenInViewer(ImageData<?> imageData) {
+        var qupath = QuPathGUI.getInstance();
+        if (qupath == null)
+            return false;
+        return qupath.getAllViewers().stream().anyMatch(viewer -> viewer.getImageData() == imageData);
+    }
+
+    /**
+     * Read the offset of the image centre from the slide centre.
+     * <p>
+     * The Hamamatsu offset tags are read straight from the NDPI header when the file is local,
+     * OpenSlide is only used as a fallback.
+     *
+     * @param server The image server
+     * @return The x and y offsets in nanometres, or null if they couldn't be read
+     */
+    private static double[] readSlideCentreOffsetNm(ImageServer<?> server) {
         URI uri = server.getURIs().iterator().next();
+        NdpaStageEvent event = NdpaStageEvent.start(NdpaStageEvent.Stage.OFFSET, uri.toString());
+        try {
+            double[] offsetNm = offsetProvider.getSlideCentreOffsetNm(uri);
+            if (offsetNm == null)
+                metrics.recordOffsetLookupFailure();
+            return offsetNm;
+        } catch (IOException e) {
+            logger.warn("Unable to read the slide offsets of {}: {}", uri, e.getMessage());
+            metrics.recordOffsetLookupFailure();
+            return null;
+        } finally {
+            event.finish(0, 0, 0);
+        }
+    }
+
+    private static double[] getOffsetUsingOpenSlide(URI uri) throws IOException {
         Path path = GeneralTools.toPath(uri);
         if (path == null || !Files.exists(path))
             path = null;
@@ -79,7 +178,7 @@ public class NdpaTools {
 
             if (osr == null) {
                 logger.warn("Could not open OpenSlide image: {}", uri);
-                return new double[] { centerX, centerY };
+                return null;
             }
 
             Map<String, String> props = osr.getProperties();
@@ -87,16 +186,13 @@ public class NdpaTools {
             double xOffset = parseDoubleOrDefault(props.get("hamamatsu.XOffsetFromSlideCentre"));
             double yOffset = parseDoubleOrDefault(props.get("hamamatsu.YOffsetFromSlideCentre"));
 
-            if (!Double.isNaN(xOffset))
-                centerX -= xOffset / pixelWidthNm;
-            if (!Double.isNaN(yOffset))
-                centerY -= yOffset / pixelHeightNm;
+            return new double[] { xOffset, yOffset };
 
+        } catch (IOException e) {
+            throw e;
         } catch (Exception e) {
-            logger.error("Error reading offsets with OpenSlide", e);
+            throw new IOException("Error reading offsets with OpenSlide", e);
         }
-
-        return new double[] { centerX, centerY };
     }
 
     private static double parseDoubleOrDefault(String str) {
@@ -106,6 +202,59 @@ public class NdpaTools {
             return Double.NaN;
         }
     }
+
+    /**
+     * Get the NDPA file that goes with an NDPI image, based on the naming scheme (image.ndpi.ndpa)
+     *
+     * @param server The image server
+     * @return The NDPA file (which may not exist yet)
+     * @throws IOException if the image is not a local NDPI file
+     */
+    private static File getNdpaFile(ImageServer<?> server) throws IOException {
+        return getNdpaFile(server.getURIs().iterator().next());
+    }
+
+    /**
+     * Get the NDPA file that goes with an NDPI image URI
+     *
+     * @param uri The image URI
+     * @return The NDPA file (which may not exist yet)
+     * @throws IOException if the URI is not a local NDPI file
+     */
+    static File getNdpaFile(URI uri) throws IOException {
+        Path path = GeneralTools.toPath(uri);
+        //check that the file extension is ndpi
+        if (path == null || !path.toString().toLowerCase().endsWith(".ndpi"))
+            throw new IOException("File is not NDPI: " + (path == null ? uri : path));
+        return new File(path + ".ndpa");
+    }
+
+    /**
+     * Change the size of the cache of exported annotations, shared by all images
+     *
+     * @param megabytes The maximum size of the cached annotations, 0 to disable the cache
+     */
+    static void setExportCacheSize(int megabytes) {
+        exportCache.setMaxChars(Math.max(0, megabytes) * 1024L * 1024);
+    }
+
+    /**
+     * Drop the exported annotations cached for an image, once it has been closed
+     *
+     * @param imageData
+     */
+    static void evictExportCache(ImageData<?> imageData) {
+        var server = imageData.getServer();
+        if (server == null)
+            return;
+        try {
+            exportCache.remove(getNdpaFile(server));
+        } catch (IOException | RuntimeException e) {
+            // Not an NDPI image, so nothing was cached
+            logger.debug("No NDPA export cache for {}: {}", imageData, e.getMessage());
+        }
+    }
+
     /**
      * Read NDPA file and add annotations to the current image
      *
@@ -114,191 +263,542 @@ public class NdpaTools {
      * @return true if successful, false otherwise
      */
     public static boolean readNDPA(ImageData<?> imageData, PathClass annotationClass) {
-        ImageServer<?> server = imageData.getServer();
-        if (server == null)
-            return false;
-            
-        //check that the file extension is ndpi
-        String uri = GeneralTools.toPath(server.getURIs().iterator().next()).toString();
-        if (!uri.toLowerCase().endsWith(".ndpi")) {
-            logger.error("File is not NDPI: "+uri);
-            return false;
-        }
+        return readNDPA(imageData, annotationClass, false);
+    }
 
-        // We need the pixel size
-        var cal = server.getPixelCalibration();
-        if (!cal.hasPixelSizeMicrons()) {
-            logger.error("No pixel information for this image!");
+    /**
+     * Read NDPA file and add annotations to the current image.
+     * <p>
+     * If annotations were already imported from the same file, only the annotations added, changed or removed
+     * since then are updated, see {@link NdpaImportManifest}.
+     *
+     * @param imageData
+     * @param annotationClass The path class to assign to annotations
+     * @param parallel If true, ROIs are built on the common fork-join pool while the file is being parsed
+     * @return true if successful, false otherwise
+     */
+    public static boolean readNDPA(ImageData<?> imageData, PathClass annotationClass, boolean parallel) {
+        try {
+            var changes = readNDPAChanges(imageData, imageData.getHierarchy().getAnnotationObjects(), annotationClass, parallel, null);
+            changes.apply(imageData);
+            return true;
+        } catch (Exception e) {
+            logger.error("Unable to import NDPA annotations", e);
             return false;
         }
+    }
 
-        double pixelWidthNm = cal.getPixelWidthMicrons() * 1000;
-        double pixelHeightNm = cal.getPixelHeightMicrons() * 1000;
-        
-        //Aperio Image Scope displays images in a different orientation
-        boolean rotated = false;
+    /**
+     * Add imported objects to the hierarchy of an image
+     *
+     * @param imageData
+     * @param pathObjects The objects to add
+     */
+    static void addObjects(ImageData<?> imageData, Collection<? extends PathObject> pathObjects) {
+        NdpaStageEvent event = NdpaStageEvent.start(NdpaStageEvent.Stage.HIERARCHY_INSERT, imageData.getServerPath());
+        // Add everything in one go, so that the hierarchy only fires a single change event
+        imageData.getHierarchy().addObjects(pathObjects);
+        event.finish(pathObjects.size(), 0, 0);
+    }
 
-        // need to add annotations to hierarchy so qupath sees them
-        var hierarchy = imageData.getHierarchy();
-            
-        //*********Get NDPA automatically based on naming scheme 
-        File ndpaFile = new File(uri + ".ndpa");
-        if (!ndpaFile.exists()) {
-            logger.error("No NDPA file for this image...");
-            return false;
-        }
+    /**
+     * Read the annotations from the NDPA file of an image, without adding them to the hierarchy
+     *
+     * @param imageData
+     * @param annotationClass The path class to assign to annotations
+     * @param parallel If true, ROIs are built on the common fork-join pool while the file is being parsed
+     * @param monitor Optional progress monitor, may be null
+     * @return The annotations, in the order they appear in the NDPA file
+     * @throws IOException if the image is not suitable or the NDPA file could not be read
+     * @throws CancellationException if the monitor cancelled the import
+     */
+    public static List<PathObject> readNDPAObjects(ImageData<?> imageData, PathClass annotationClass, boolean parallel,
+                                                   NdpaProgressMonitor monitor) throws IOException {
+        File ndpaFile = getNdpaFile(imageData);
 
-        //Get X Reference from OPENSLIDE data
+        //Get X Reference from the NDPI tags (or OPENSLIDE data)
         //The Open slide numbers are actually offset from IMAGE center (not physical slide center). 
-        double[] offset = getOffsetUsingOpenSlide(server);
-        double offsetFromTopLeftX = offset[0];
-        double offsetFromTopLeftY = offset[1];
-
-        logger.info("offset: {} {}", offsetFromTopLeftX, offsetFromTopLeftY);
+        return readNDPAObjects(ndpaFile, getImageInfo(imageData), annotationClass, parallel, monitor);
+    }
 
-        Function<Double, Double> transformX = x -> (x / pixelWidthNm) + offsetFromTopLeftX;
-        Function<Double, Double> transformY = y -> (y / pixelHeightNm) + offsetFromTopLeftY;
+    /**
+     * Work out what changed in the NDPA file of an image since it was last imported, without touching the hierarchy.
+     * <p>
+     * Only the annotations that are new or have changed are turned into objects, along with those whose objects
+     * were deleted in QuPath; the changes can then be applied with
+     * {@link NdpaImportManifest.Changes#apply(ImageData)}, which also stores the new manifest.
+     *
+     * @param imageData
+     * @param existingObjects The objects currently in the image (usually the annotations of the hierarchy)
+     * @param annotationClass The path class to assign to annotations
+     * @param parallel If true, ROIs are built on the common fork-join pool while the file is being parsed
+     * @param monitor Optional progress monitor, may be null
+     * @return The changes to apply
+     * @throws IOException if the image is not suitable or the NDPA file could not be read
+     * @throws CancellationException if the monitor cancelled the import
+     */
+    public static NdpaImportManifest.Changes readNDPAChanges(ImageData<?> imageData, Collection<? extends PathObject> existingObjects,
+                                                             PathClass annotationClass, boolean parallel,
+                                                             NdpaProgressMonitor monitor) throws IOException {
+        return readNDPAChanges(imageData, existingObjects, annotationClass, parallel, true, monitor);
+    }
 
+    /**
+     * Work out what changed in the NDPA file of an image since it was last imported, without touching the hierarchy.
+     * <p>
+     * Only the annotations that are new or have changed are turned into objects; the changes can then be applied
+     * with {@link NdpaImportManifest.Changes#apply(ImageData)}, which also stores the new manifest.
+     *
+     * @param imageData
+     * @param existingObjects The objects currently in the image (usually the annotations of the hierarchy)
+     * @param annotationClass The path class to assign to annotations
+     * @param parallel If true, ROIs are built on the common fork-join pool while the file is being parsed
+     * @param restoreDeleted If true, the file is read even if it hasn't changed since the last import, and the
+     *                       objects of its annotations that were deleted in QuPath are created again (as an explicit
+     *                       import is expected to do); if false, an unchanged file isn't read at all (for reloads)
+     * @param monitor Optional progress monitor, may be null
+     * @return The changes to apply
+     * @throws IOException if the image is not suitable or the NDPA file could not be read
+     * @throws CancellationException if the monitor cancelled the import
+     */
+    public static NdpaImportManifest.Changes readNDPAChanges(ImageData<?> imageData, Collection<? extends PathObject> existingObjects,
+                                                             PathClass annotationClass, boolean parallel, boolean restoreDeleted,
+                                                             NdpaProgressMonitor monitor) throws IOException {
+        File ndpaFile = getNdpaFile(imageData);
+        if (!ndpaFile.exists())
+            throw new IOException("No NDPA file for this image: " + ndpaFile);
+        NdpiImageInfo imageInfo = getImageInfo(imageData);
+
+        var previous = NdpaImportManifest.read(imageData);
+        String settings = NdpaImportManifest.getSettings(imageInfo, annotationClass);
         try {
-            // Parse XML
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document doc = builder.parse(ndpaFile);
-            doc.getDocumentElement().normalize();
-        
-            NodeList ndpviewstates = doc.getDocumentElement().getChildNodes();
+            String fileHash = NdpaImportManifest.hashFile(ndpaFile.toPath());
+            if (!restoreDeleted && previous != null && previous.isUpToDate(fileHash, settings)) {
+                logger.info("{} hasn't changed since it was imported", ndpaFile);
+                return NdpaImportManifest.Changes.none(previous);
+            }
 
-            ArrayList<String> colorClassNames = new ArrayList<String>(); 
-        
-            for (int i = 0; i < ndpviewstates.getLength(); i++) {
-                Node ndpviewstateNode = ndpviewstates.item(i);
-                if (ndpviewstateNode.getNodeType() != Node.ELEMENT_NODE)
-                    continue;
-                
-                Element ndpviewstate = (Element) ndpviewstateNode;
-            
-                String annotationName = getTextContent(ndpviewstate, "title");
-                Element annotationElem = (Element) ndpviewstate.getElementsByTagName("annotation").item(0);
-                String annotationType = annotationElem.getAttribute("type").toUpperCase();
-                String annotationColor = annotationElem.getAttribute("color").toUpperCase();
-                if(!colorClassNames.contains(annotationColor)){
-                    colorClassNames.add(annotationColor);
-                }
-                int annotationR = Integer.parseInt(annotationColor.substring(1, 3), 16);
-                int annotationG = Integer.parseInt(annotationColor.substring(3, 5), 16);
-                int annotationB = Integer.parseInt(annotationColor.substring(5, 7), 16);
-                String details = getTextContent(ndpviewstate, "details");
+            // The sync claims manifest entries as annotations are read, so the XML parser gets a fresh one
+            // if it has to read the file again after the fast scanner
+            NdpaImportManifest.Sync[] sync = { null };
+            var converter = createConverter(imageInfo, annotationClass);
+            List<PathObject> pathObjects = readNDPAFile(ndpaFile, () -> {
+                var attempt = new NdpaImportManifest.Sync(previous, settings, existingObjects, restoreDeleted);
+                sync[0] = attempt;
+                return ndpa -> attempt.getObject(ndpa, converter);
+            }, parallel, monitor);
+            var changes = sync[0].finish(fileHash, settings, pathObjects);
+            logger.info("Imported {}: {}", ndpaFile, changes);
+            return changes;
+        } catch (IOException | RuntimeException e) {
+            if (!(e instanceof CancellationException))
+                metrics.recordImportFailure();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the NDPA file of an image, checking that the image is suitable
+     *
+     * @param imageData
+     * @return The NDPA file (which may not exist yet)
+     * @throws IOException if the image is not a local NDPI file, or has no pixel size
+     */
+    private static File getNdpaFile(ImageData<?> imageData) throws IOException {
+        ImageServer<?> server = imageData.getServer();
+        if (server == null)
+            throw new IOException("No image server");
 
-                ROI roi = null;
-                logger.info("elem: {} {} {} {} ({},{},{})", annotationElem, annotationType, annotationName, annotationColor, annotationR, annotationG, annotationB);
+        File ndpaFile = getNdpaFile(server);
 
-                if ("CIRCLE".equals(annotationType)) {
-                    double x = Double.parseDouble(getTextContent(annotationElem,"x"));
-                    double y = Double.parseDouble(getTextContent(annotationElem,"y"));
+        // We need the pixel size
+        var cal = server.getPixelCalibration();
+        if (!cal.hasPixelSizeMicrons())
+            throw new IOException("No pixel information for this image!");
+        return ndpaFile;
+    }
 
-                    double radius = Double.parseDouble(getTextContent(annotationElem,"radius"));
-                    double rx = radius / pixelWidthNm;
-                    double ry = radius / pixelHeightNm;
+    /**
+     * Read the annotations from an NDPA file, without needing an image server or a GUI
+     *
+     * @param ndpaFile The NDPA file
+     * @param imageInfo The size, pixel size and offsets of the image the annotations belong to
+     * @param annotationClass The path class to assign to annotations
+     * @param parallel If true, ROIs are built on the common fork-join pool while the file is being parsed
+     * @param monitor Optional progress monitor, may be null
+     * @return The annotations, in the order they appear in the NDPA file
+     * @throws IOException if the NDPA file could not be read
+     * @throws CancellationException if the monitor cancelled the import
+     */
+    public static List<PathObject> readNDPAObjects(File ndpaFile, NdpiImageInfo imageInfo, PathClass annotationClass,
+                                                   boolean parallel, NdpaProgressMonitor monitor) throws IOException {
+        try {
+            var converter = createConverter(imageInfo, annotationClass);
+            return readNDPAFile(ndpaFile, () -> converter, parallel, monitor);
+        } catch (IOException | RuntimeException e) {
+            if (!(e instanceof CancellationException))
+                metrics.recordImportFailure();
+            throw e;
+        }
+    }
 
-                    roi = ROIs.createEllipseROI(transformX.apply(x) - rx, transformY.apply(y) - ry,
-                        rx * 2, ry * 2, null);
-                }
+    /**
+     * Create the function turning NDPA annotations into locked annotation objects
+     *
+     * @param imageInfo The size, pixel size and offsets of the image the annotations belong to
+     * @param annotationClass The path class to assign to annotations
+     * @return The function, which returns null for unsupported annotation types
+     */
+    private static Function<NdpaAnnotation, PathObject> createConverter(NdpiImageInfo imageInfo, PathClass annotationClass) {
+        //Aperio Image Scope displays images in a different orientation
+        boolean rotated = false;
 
-                if ("LINEARMEASURE".equals(annotationType)) {
-                    double x1 = Double.parseDouble(getTextContent(annotationElem,"x1"));
-                    double y1 = Double.parseDouble(getTextContent(annotationElem,"y1"));
-                    double x2 = Double.parseDouble(getTextContent(annotationElem,"x2"));
-                    double y2 = Double.parseDouble(getTextContent(annotationElem,"y2"));
+        logger.debug("offset: {} {}", imageInfo.getSlideCentreX(), imageInfo.getSlideCentreY());
 
-                    roi = ROIs.createLineROI(transformX.apply(x1), transformY.apply(y1),
-                            transformX.apply(x2), transformY.apply(y2), null);
-                }
+        NdpaTransform transform = imageInfo.createTransform(rotated);
+        return ndpa -> {
+            ROI roi = createROI(ndpa, transform);
+            return roi == null ? null : createAnnotation(ndpa, roi, annotationClass);
+        };
+    }
+
+    /**
+     * Read the objects of an NDPA file, with the fast scanner or, if it can't read the file, the XML parser
+     *
+     * @param ndpaFile The NDPA file
+     * @param converters Creates the function turning annotations into objects, once for each attempt at reading
+     *                   the file, so that a converter with side effects starts afresh when the XML parser takes over
+     * @param parallel If true, ROIs are built on the common fork-join pool while the file is being parsed
+     * @param monitor Optional progress monitor, may be null
+     * @return The objects, in the order of the annotations in the file
+     * @throws IOException if the NDPA file could not be read
+     */
+    private static List<PathObject> readNDPAFile(File ndpaFile, Supplier<Function<NdpaAnnotation, PathObject>> converters,
+                                                 boolean parallel, NdpaProgressMonitor monitor) throws IOException {
+        //*********Get NDPA automatically based on naming scheme 
+        if (!ndpaFile.exists())
+            throw new IOException("No NDPA file for this image: " + ndpaFile);
+
+        long fileLength = Math.max(ndpaFile.length(), 1);
+        List<PathObject> annotations = new ArrayList<>();
+        long startTime = System.nanoTime();
+
+        // Try the fast scanner first, the XML parser is only needed for files it doesn't understand
+        String name = ndpaFile.getPath();
+        ProgressTracker progress;
+        ImportSummary summary;
+        try (NdpaFastScanner scanner = new NdpaFastScanner(ndpaFile.toPath())) {
+            progress = new ProgressTracker(monitor, () -> scanner.getPosition() / (double) fileLength);
+            summary = new ImportSummary("fast");
+            readAnnotations(name, scanner::next, scanner::getPosition, converters.get(), annotations, parallel, progress, summary);
+        } catch (IOException e) {
+            logger.debug("Reading {} with the XML parser: {}", ndpaFile, e.getMessage());
+            annotations.clear();
+            try (CountingInputStream stream = new CountingInputStream(new BufferedInputStream(new FileInputStream(ndpaFile)));
+                 NdpaReader reader = new NdpaReader(stream)) {
+                progress = new ProgressTracker(monitor, () -> stream.getCount() / (double) fileLength);
+                summary = new ImportSummary("xml");
+                readAnnotations(name, reader::next, stream::getCount, converters.get(), annotations, parallel, progress, summary);
+            }
+        }
+
+        metrics.recordImport(annotations.size(), progress.points);
+        if (logger.isInfoEnabled())
+            logger.info(summary.toString(ndpaFile, annotations.size(), fileLength, System.nanoTime() - startTime));
+        return annotations;
+    }
 
-                if ("PIN".equals(annotationType)) {
-                    double x = Double.parseDouble(getTextContent(annotationElem,"x"));
-                    double y = Double.parseDouble(getTextContent(annotationElem,"y"));
+    /**
+     * Source of NDPA annotations, either the fast scanner or the XML parser
+     */
+    @FunctionalInterface
+    private interface AnnotationSource {
+        NdpaAnnotation next() throws IOException;
+    }
 
-                    roi = ROIs.createPointsROI(transformX.apply(x), transformY.apply(y), null);
+    /**
+     * Stream the annotations one chunk at a time, each chunk is turned into objects straight away.
+     * <p>
+     * Parsing stays on the calling thread. In parallel, chunks are handed over to the common fork-join pool
+     * while the calling thread carries on reading, and are joined in order, so the objects are added in
+     * document order.
+     *
+     * @param name The name of the file, for the flight recorder events
+     * @param source The source of annotations
+     * @param position The number of bytes read from the file so far
+     * @param converter The function creating an object from an NDPA annotation (may return null)
+     * @param pathObjects The list the objects are added to
+     * @param parallel If true, the objects are created on the common fork-join pool
+     * @param progress Progress tracker, updated as annotations are read
+     * @param summary Summary of the import, updated as annotations are read and converted
+     * @throws IOException if the NDPA file could not be read
+     */
+    private static void readAnnotations(String name, AnnotationSource source, LongSupplier position,
+                                        Function<NdpaAnnotation, PathObject> converter, List<PathObject> pathObjects,
+                                        boolean parallel, ProgressTracker progress, ImportSummary summary) throws IOException {
+        List<ForkJoinTask<List<PathObject>>> tasks = new ArrayList<>();
+        AtomicBoolean aborted = new AtomicBoolean();
+        try {
+            List<NdpaAnnotation> chunk;
+            while (!(chunk = readChunk(name, source, position, progress, summary)).isEmpty()) {
+                if (parallel) {
+                    List<NdpaAnnotation> toConvert = chunk;
+                    tasks.add(ForkJoinPool.commonPool().submit(() -> convertChunk(name, toConvert, converter, summary, aborted)));
+                } else {
+                    pathObjects.addAll(convertChunk(name, chunk, converter, summary, aborted));
                 }
+            }
+            for (var task : tasks)
+                pathObjects.addAll(task.join());
+        } catch (IOException | RuntimeException e) {
+            // Cancelling a fork-join task doesn't stop it once it has started, so the chunks stop themselves
+            // and are waited for: the converter must not be called any more once the failure is reported
+            aborted.set(true);
+            for (var task : tasks) {
+                task.cancel(false);
+                task.quietlyJoin();
+            }
+            throw e;
+        }
+        progress.done();
+    }
 
-                if ("FREEHAND".equals(annotationType)) {
-                    List<Point2> tmpPointsList = new ArrayList<>();
+    /**
+     * Read the next chunk of annotations
+     *
+     * @param name The name of the file, for the flight recorder events
+     * @param source The source of annotations
+     * @param position The number of bytes read from the file so far
+     * @param progress Progress tracker, updated as annotations are read
+     * @param summary Summary of the import, updated with the types of the annotations
+     * @return The annotations, empty at the end of the file
+     * @throws IOException if the NDPA file could not be read
+     */
+    private static List<NdpaAnnotation> readChunk(String name, AnnotationSource source, LongSupplier position,
+                                                  ProgressTracker progress, ImportSummary summary) throws IOException {
+        NdpaStageEvent event = NdpaStageEvent.start(NdpaStageEvent.Stage.PARSE, name);
+        long startPosition = position.getAsLong();
+        List<NdpaAnnotation> chunk = new ArrayList<>();
+        long nPoints = 0;
+        boolean debug = logger.isDebugEnabled();
+
+        NdpaAnnotation ndpa;
+        while ((ndpa = source.next()) != null) {
+            if (debug)
+                logger.debug("elem: {} {} {} {}", ndpa.getType(), ndpa.getTitle(), ndpa.getColor(), ndpa.getNumPoints());
+            summary.addType(ndpa);
+            chunk.add(ndpa);
+            nPoints += ndpa.getNumPoints();
+            progress.add(1, ndpa.getNumPoints());
+            if (chunk.size() >= CHUNK_ANNOTATIONS || nPoints >= CHUNK_POINTS)
+                break;
+        }
+        summary.parseNanos += event.finish(chunk.size(), nPoints, position.getAsLong() - startPosition);
+        return chunk;
+    }
 
-                    Element pointlistElem = (Element) annotationElem.getElementsByTagName("pointlist").item(0);
-                    NodeList points = pointlistElem.getElementsByTagName("point");
+    /**
+     * Create the objects of a chunk of annotations
+     *
+     * @param name The name of the file, for the flight recorder events
+     * @param chunk The annotations
+     * @param converter The function creating an object from an NDPA annotation (may return null)
+     * @param summary Summary of the import, updated with the time spent
+     * @param aborted Set if the import has failed, in which case the chunk is abandoned
+     * @return The objects, in the order of the annotations
+     * @throws CancellationException if the import has failed
+     */
+    private static List<PathObject> convertChunk(String name, List<NdpaAnnotation> chunk,
+                                                 Function<NdpaAnnotation, PathObject> converter, ImportSummary summary,
+                                                 AtomicBoolean aborted) {
+        NdpaStageEvent event = NdpaStageEvent.start(NdpaStageEvent.Stage.ROI_BUILD, name);
+        List<PathObject> pathObjects = new ArrayList<>(chunk.size());
+        long nPoints = 0;
+        for (NdpaAnnotation ndpa : chunk) {
+            if (aborted.get())
+                throw new CancellationException("NDPA import abandoned");
+            PathObject pathObject = converter.apply(ndpa);
+            if (pathObject != null)
+                pathObjects.add(pathObject);
+            nPoints += ndpa.getNumPoints();
+        }
+        summary.roiNanos.add(event.finish(chunk.size(), nPoints, 0));
+        return pathObjects;
+    }
 
-                    for (int j = 0; j < points.getLength(); j++) {
-                        Element pointElem = (Element) points.item(j);
+    /**
+     * Create a ROI from an NDPA annotation
+     *
+     * @param ndpa The NDPA annotation
+     * @param transform The nanometre to pixel transform
+     * @return The ROI, or null if the annotation type is not supported
+     */
+    static ROI createROI(NdpaAnnotation ndpa, NdpaTransform transform) {
+        String annotationType = ndpa.getType();
+        double[] xs = ndpa.getX();
+        double[] ys = ndpa.getY();
+
+        if ("CIRCLE".equals(annotationType)) {
+            double radius = ndpa.getRadius();
+            double rx = radius / transform.getPixelWidthNm();
+            double ry = radius / transform.getPixelHeightNm();
+
+            return ROIs.createEllipseROI(transform.toPixelX(xs[0]) - rx, transform.toPixelY(ys[0]) - ry,
+                rx * 2, ry * 2, null);
+        }
 
-                        double x = Double.parseDouble(getTextContent(pointElem, "x"));
-                        double y = Double.parseDouble(getTextContent(pointElem, "y"));
+        if ("LINEARMEASURE".equals(annotationType)) {
+            return ROIs.createLineROI(transform.toPixelX(xs[0]), transform.toPixelY(ys[0]),
+                    transform.toPixelX(xs[1]), transform.toPixelY(ys[1]), null);
+        }
 
-                        if (rotated) {
-                            y = server.getHeight() - y;
-                        }
+        if ("PIN".equals(annotationType)) {
+            return ROIs.createPointsROI(transform.toPixelX(xs[0]), transform.toPixelY(ys[0]), null);
+        }
 
-                        tmpPointsList.add(new Point2(transformX.apply(x), transformY.apply(y)));
-                    }
+        if ("FREEHAND".equals(annotationType)) {
+            int n = xs.length;
+            double[] xPx = new double[n];
+            double[] yPx = new double[n];
+            transform.toPixels(xs, ys, xPx, yPx, n);
+
+            boolean isRectangle = "rectangle".equalsIgnoreCase(ndpa.getSpecialType());
+            boolean isClosed = true; // Could also read from XML if needed
+
+            if (isRectangle) {
+                // Corners 0 and 2 are opposite, whichever way the image is flipped
+                double x1 = Math.min(xPx[0], xPx[2]);
+                double y1 = Math.min(yPx[0], yPx[2]);
+                return ROIs.createRectangleROI(x1, y1, Math.abs(xPx[2] - xPx[0]), Math.abs(yPx[2] - yPx[0]), null);
+            } else if (isClosed) {
+                return ROIs.createPolygonROI(xPx, yPx, null);
+            } else {
+                return ROIs.createPolylineROI(xPx, yPx, null);
+            }
+        }
+        return null;
+    }
 
-                    boolean isRectangle = "rectangle".equalsIgnoreCase(annotationElem.getAttribute("specialtype"));
-                    boolean isClosed = true; // Could also read from XML if needed
-
-                    if (isRectangle) {
-                        double x1 = tmpPointsList.get(0).getX();
-                        double y1 = tmpPointsList.get(0).getY();
-                        double x3 = tmpPointsList.get(2).getX();
-                        double y3 = tmpPointsList.get(2).getY();
-                        roi = ROIs.createRectangleROI(x1, y1, x3 - x1, y3 - y1, null);
-                    } else if (isClosed) {
-                        roi = ROIs.createPolygonROI(tmpPointsList, null);
-                    } else {
-                        roi = ROIs.createPolylineROI(tmpPointsList, null);
-                    }
-                }
+    /**
+     * Create a locked annotation object from an NDPA annotation and its ROI
+     *
+     * @param ndpa The NDPA annotation
+     * @param roi The ROI
+     * @param annotationClass The path class to assign, or null to use the NDPA colour as classification
+     * @return The annotation object
+     */
+    private static PathAnnotationObject createAnnotation(NdpaAnnotation ndpa, ROI roi, PathClass annotationClass) {
+        String annotationColor = ndpa.getColor();
+        int annotationR = Integer.parseInt(annotationColor.substring(1, 3), 16);
+        int annotationG = Integer.parseInt(annotationColor.substring(3, 5), 16);
+        int annotationB = Integer.parseInt(annotationColor.substring(5, 7), 16);
+
+        PathAnnotationObject annotation = new PathAnnotationObject();
+        annotation.setROI(roi);
+        annotation.setName(ndpa.getTitle());
+
+        if (annotationClass != null) {
+            annotation.setPathClass(annotationClass);
+        }
+        else {
+            annotation.setClassification(annotationColor);
+        }
 
-                if (roi != null) {
-                    PathAnnotationObject annotation = new PathAnnotationObject();
-                    annotation.setROI(roi);
-                    annotation.setName(annotationName);
+        annotation.setColor(annotationR, annotationG, annotationB); //!!!
 
-                    if (annotationClass != null) {
-                        annotation.setPathClass(annotationClass);
-                    }
-                    else {
-                        annotation.setClassification(annotationColor);
-                    }
+        String details = ndpa.getDetails();
+        if (details != null && !details.isEmpty()) {
+            annotation.setDescription(details);
+        }
 
-                    annotation.setColor(annotationR, annotationG, annotationB); //!!!
+        annotation.setLocked(true);
+        return annotation;
+    }
 
-                    if (details != null && !details.isEmpty()) {
-                        annotation.setDescription(details);
-                    }
+    /**
+     * Simplify the outline of an object and remove small holes, before exporting it as NDPA polygons
+     *
+     * @param pathObject The object to export
+     * @return The polygons to export
+     */
+    @SuppressWarnings("unchecked")
+    static List<Polygon> getExportPolygons(PathObject pathObject) {
+        //We make a list of polygons, each has an exterior and interior rings
+        var geometry = pathObject.getROI().getGeometry();
+
+        //Here we do some processing to simplify the outlines and remove small holes
+        geometry = TopologyPreservingSimplifier.simplify(geometry, 5.0);
+        geometry = GeometryTools.refineAreas(geometry, 200, 200);
+        return PolygonExtracter.getPolygons(geometry);
+    }
 
-                    annotation.setLocked(true);
-                    hierarchy.addObject(annotation);
-                }
+    /**
+     * Write the polygons of an object, each one with an exterior ring and "clear" interior rings
+     *
+     * @param writer The NDPA writer
+     * @param pathObject The object the polygons were extracted from
+     * @param polygons The polygons
+     * @param transform The nanometre to pixel transform
+     * @param packedColor The packed RGB colour of the object
+     * @param buffer Buffer for the ring coordinates
+     * @return The number of points written
+     * @throws IOException if the polygons could not be written
+     */
+    private static long writePolygons(NdpaWriter writer, PathObject pathObject, List<Polygon> polygons,
+                                      NdpaTransform transform, int packedColor, PointBuffer buffer) throws IOException {
+        String title = pathObject.getName() == null ? "" : pathObject.getName();
+        String details = pathObject.getPathClass() != null ? pathObject.getPathClass().toString() : "";
+        String color = String.format("#%06x", packedColor & 0xFFFFFF);
+
+        long points = 0;
+        for (var polygon : polygons) {
+            //the exterior ring carries the annotation, interior rings are written as "clear" holes
+            buffer.setRing(polygon.getExteriorRing(), transform);
+            writer.writeFreehand(title, details, color, buffer.xNm, buffer.yNm, buffer.n);
+            points += buffer.n;
+
+            int nRings = polygon.getNumInteriorRing();
+            for (int i = 0; i < nRings; i++) {
+                buffer.setRing(polygon.getInteriorRingN(i), transform);
+                writer.writeFreehand("clear", "clear", "#000000", buffer.xNm, buffer.yNm, buffer.n);
+                points += buffer.n;
             }
-            return true;
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
         }
+        return points;
     }
 
     /**
-     * Extract point list from a geometry ring
-     *
-     * @param ring The geometry ring
-     * @return List of points as [x,y] arrays
+     * Reusable buffers holding the points of one ring, in pixels and in nanometres
      */
-    private static List<double[]> getPointList(org.locationtech.jts.geom.LineString ring) {
-        List<double[]> pointlist = new ArrayList<>();
-        var coords = ring.getCoordinates();
-        for (int i = 0; i < coords.length - 1; i++) {
-            pointlist.add(new double[] { coords[i].x, coords[i].y });
+    private static class PointBuffer {
+
+        private double[] xPx = new double[0];
+        private double[] yPx = new double[0];
+        private long[] xNm = new long[0];
+        private long[] yNm = new long[0];
+        private int n;
+
+        /**
+         * Extract the points of a geometry ring, without the closing point, and convert them to nanometres
+         *
+         * @param ring The geometry ring
+         * @param transform The nanometre to pixel transform
+         */
+        private void setRing(LineString ring, NdpaTransform transform) {
+            var coords = ring.getCoordinateSequence();
+            n = Math.max(coords.size() - 1, 0);
+            if (xPx.length < n) {
+                xPx = new double[n];
+                yPx = new double[n];
+                xNm = new long[n];
+                yNm = new long[n];
+            }
+            for (int i = 0; i < n; i++) {
+                xPx[i] = coords.getX(i);
+                yPx[i] = coords.getY(i);
+            }
+            transform.toNanometres(xPx, yPx, xNm, yNm, n);
         }
-        return pointlist;
     }
 
     private static File getBackupNdpaFile(File ndpaFile) {
@@ -319,176 +819,587 @@ public class NdpaTools {
      * @return true if successful, false otherwise
      */
     public static boolean writeNDPA(ImageData<?> imageData) {
+        return writeNDPA(imageData, false);
+    }
+
+    /**
+     * Write QuPath annotations to an NDPA file
+     *
+     * @param imageData
+     * @param parallel If true, outlines are simplified on the common fork-join pool while the file is being written
+     * @return true if successful, false otherwise
+     */
+    public static boolean writeNDPA(ImageData<?> imageData, boolean parallel) {
+        try {
+            writeNDPAObjects(imageData, imageData.getHierarchy().getAnnotationObjects(), parallel, null);
+            return true;
+        } catch (Exception e) {
+            logger.error("Unable to export NDPA annotations", e);
+            return false;
+        }
+    }
+
+    /**
+     * Write objects to the NDPA file of an image, backing up any existing file
+     *
+     * @param imageData
+     * @param pathObjects The objects to export (usually the annotations of the hierarchy)
+     * @param parallel If true, outlines are simplified on the common fork-join pool while the file is being written
+     * @param monitor Optional progress monitor, may be null
+     * @throws IOException if the image is not suitable or the NDPA file could not be written
+     * @throws CancellationException if the monitor cancelled the export
+     */
+    public static void writeNDPAObjects(ImageData<?> imageData, Collection<? extends PathObject> pathObjects, boolean parallel,
+                                        NdpaProgressMonitor monitor) throws IOException {
+        writeNDPAObjects(imageData, pathObjects, parallel, true, monitor);
+    }
+
+    /**
+     * Write objects to the NDPA file of an image
+     *
+     * @param imageData
+     * @param pathObjects The objects to export (usually the annotations of the hierarchy)
+     * @param parallel If true, outlines are simplified on the common fork-join pool while the file is being written
+     * @param backup If true, any existing file is backed up first
+     * @param monitor Optional progress monitor, may be null
+     * @return true if the NDPA file was written, false if it already had the same content
+     * @throws IOException if the image is not suitable or the NDPA file could not be written
+     * @throws CancellationException if the monitor cancelled the export
+     */
+    static boolean writeNDPAObjects(ImageData<?> imageData, Collection<? extends PathObject> pathObjects, boolean parallel,
+                                    boolean backup, NdpaProgressMonitor monitor) throws IOException {
         ImageServer<?> server = imageData.getServer();
         if (server == null)
-            return false;
+            throw new IOException("No image server");
 
-        // Check that the file extension is ndpi
-        String uri = GeneralTools.toPath(server.getURIs().iterator().next()).toString();
-        if (!uri.toLowerCase().endsWith(".ndpi")) {
-            logger.error("File is not NDPI: "+uri);
-            return false;
+        File ndpaFile = getNdpaFile(server);
+
+        // We need the pixel size
+        var cal = server.getPixelCalibration();
+        if (!cal.hasPixelSizeMicrons())
+            throw new IOException("No pixel information for this image!");
+
+        //Get X Reference from the NDPI tags (or OPENSLIDE data)
+        //The Open slide numbers are actually offset from IMAGE center (not physical slide center). 
+        NdpiImageInfo imageInfo = getImageInfo(imageData);
+        List<PathObject> viewStateObjects = new ArrayList<>();
+        boolean written = writeNDPAObjects(ndpaFile, imageInfo, pathObjects, ColorToolsFX::getDisplayedColorARGB, parallel, backup,
+                viewStateObjects, monitor);
+        recordExport(imageData, ndpaFile, imageInfo, viewStateObjects);
+        return written;
+    }
+
+    /**
+     * Record an export in the import manifest of an image, as if the NDPA file had just been imported with each
+     * annotation matched to the object it was exported from. Otherwise, the next import or reload (e.g. once
+     * NDP.view has saved the file) would bring the exported annotations back as new objects.
+     *
+     * @param imageData
+     * @param ndpaFile The NDPA file that was exported
+     * @param imageInfo The image info the objects were exported with
+     * @param viewStateObjects The object each {@code ndpviewstate} of the file was exported from, in order
+     */
+    private static void recordExport(ImageData<?> imageData, File ndpaFile, NdpiImageInfo imageInfo,
+                                     List<PathObject> viewStateObjects) {
+        // Annotations are read back rather than rebuilt, so that their content hashes are exactly those of an import
+        String settings = NdpaImportManifest.getSettings(imageInfo, null);
+        var sync = new NdpaImportManifest.Sync(null, settings, List.of(), false);
+        try (NdpaFastScanner scanner = new NdpaFastScanner(ndpaFile.toPath())) {
+            String fileHash = NdpaImportManifest.hashFile(ndpaFile.toPath());
+            int n = 0;
+            NdpaAnnotation ndpa;
+            while ((ndpa = scanner.next()) != null) {
+                if (n >= viewStateObjects.size())
+                    throw new IOException("More annotations than exported");
+                PathObject pathObject = viewStateObjects.get(n++);
+                sync.getObject(ndpa, annotation -> pathObject);
+            }
+            if (n != viewStateObjects.size())
+                throw new IOException("Fewer annotations than exported");
+            var changes = sync.finish(fileHash, settings, List.of());
+            runForImage(imageData, () -> changes.apply(imageData));
+        } catch (IOException e) {
+            logger.warn("Unable to record the export of {} in the import manifest: {}", ndpaFile, e.getMessage());
         }
+    }
+
+    /**
+     * Write objects to an NDPA file, backing up any existing file, without needing an image server or a GUI
+     *
+     * @param ndpaFile The NDPA file
+     * @param imageInfo The size, pixel size and offsets of the image the objects belong to
+     * @param pathObjects The objects to export
+     * @param colorFunction The function giving the packed RGB colour of each object, only called from the calling thread
+     * @param parallel If true, outlines are simplified on the common fork-join pool while the file is being written
+     * @param monitor Optional progress monitor, may be null
+     * @throws IOException if the NDPA file could not be written
+     * @throws CancellationException if the monitor cancelled the export
+     */
+    public static void writeNDPAObjects(File ndpaFile, NdpiImageInfo imageInfo, Collection<? extends PathObject> pathObjects,
+                                        ToIntFunction<PathObject> colorFunction, boolean parallel,
+                                        NdpaProgressMonitor monitor) throws IOException {
+        writeNDPAObjects(ndpaFile, imageInfo, pathObjects, colorFunction, parallel, true, null, monitor);
+    }
+
+    private static boolean writeNDPAObjects(File ndpaFile, NdpiImageInfo imageInfo, Collection<? extends PathObject> pathObjects,
+                                            ToIntFunction<PathObject> colorFunction, boolean parallel, boolean backup,
+                                            List<PathObject> viewStateObjects, NdpaProgressMonitor monitor) throws IOException {
+        try {
+            return writeNDPAFile(ndpaFile, imageInfo, pathObjects, colorFunction, parallel, backup, viewStateObjects, monitor);
+        } catch (IOException | RuntimeException e) {
+            if (!(e instanceof CancellationException))
+                metrics.recordExportFailure();
+            throw e;
+        }
+    }
 
-        // Backup any existing ndpa file
-        File ndpaFile = new File(uri + ".ndpa");
-        if (ndpaFile.exists()) {
-            File backup = getBackupNdpaFile(ndpaFile);
-            logger.info("Creating backup: {}", backup.getAbsolutePath());
-            try {
-                Files.copy(ndpaFile.toPath(), backup.toPath());
-            } catch (IOException e) {
-                logger.error("Failed to create NDPA backup", e);
-                return false;
+    /**
+     * Write objects to an NDPA file, unless it already has exactly the same content
+     *
+     * @param viewStateObjects Optional list receiving the object each {@code ndpviewstate} was written from, in order
+     * @return true if the NDPA file was written, false if it was left alone
+     */
+    private static boolean writeNDPAFile(File ndpaFile, NdpiImageInfo imageInfo, Collection<? extends PathObject> pathObjects,
+                                         ToIntFunction<PathObject> colorFunction, boolean parallel, boolean backup,
+                                         List<PathObject> viewStateObjects, NdpaProgressMonitor monitor) throws IOException {
+        // The file is written next to the NDPA file and moved into place once complete,
+        // so that a crash, a full disk or a reader never sees a truncated NDPA file
+        Path target = ndpaFile.toPath();
+        Path tempFile = target.resolveSibling("." + target.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+        Path backupFile = null;
+        boolean committed = false;
+        try {
+            double imageCenter_X = imageInfo.getWidth() / 2.0;
+            double imageCenter_Y = imageInfo.getHeight() / 2.0;
+
+            //Aperio Image Scope displays images in a different orientation
+            boolean rotated = false;
+
+            logger.debug("offset: {} {}", imageInfo.getSlideCentreX(), imageInfo.getSlideCentreY());
+
+            List<PathObject> objects = new ArrayList<>(pathObjects);
+            // The colour function may depend on the GUI preferences, so it is only called from this thread
+            int[] colors = new int[objects.size()];
+            for (int i = 0; i < colors.length; i++)
+                colors[i] = colorFunction.applyAsInt(objects.get(i));
+
+            NdpaTransform transform = imageInfo.createTransform(rotated);
+            PointBuffer buffer = new PointBuffer();
+            String name = ndpaFile.getPath();
+            int nObjects = objects.size();
+            int[] written = { 0 };
+            ProgressTracker progress = new ProgressTracker(monitor, () -> written[0] / (double) Math.max(nObjects, 1));
+
+            // Objects that haven't changed since the last export to this file are written from the cached fragments
+            Map<String, NdpaExportCache.CachedObject> cached = exportCache.get(ndpaFile, imageInfo);
+            NdpaExportCache.Collector exported = exportCache.collect();
+            int[] reused = { 0 };
+
+            // Whatever is still buffered at the end is written out when the writer is closed
+            NdpaStageEvent closeEvent;
+            long closePosition;
+
+            // Each ring is written out as soon as it has been processed, and hashed on the way.
+            // The writer closes the whole chain, the file is also a resource in case the writer can't be created
+            MessageDigest digest = NdpaImportManifest.createDigest();
+            try (OutputStream file = Files.newOutputStream(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                 CountingOutputStream stream = new CountingOutputStream(new DigestOutputStream(file, digest));
+                 NdpaWriter writer = new NdpaWriter(stream, (int) imageCenter_X, (int) imageCenter_Y)) {
+                // Geometries are prepared in chunks, a bounded number of chunks ahead of the one being written
+                Deque<ForkJoinTask<List<ExportObject>>> tasks = new ArrayDeque<>();
+                int maxTasks = 2 * ForkJoinPool.commonPool().getParallelism();
+                AtomicBoolean aborted = new AtomicBoolean();
+                ChunkWriter chunkWriter = chunk -> {
+                    NdpaStageEvent event = NdpaStageEvent.start(NdpaStageEvent.Stage.WRITE, name);
+                    int startCount = writer.getCount();
+                    long startPosition = stream.getCount();
+                    long nPoints = 0;
+                    for (ExportObject object : chunk) {
+                        int count = writer.getCount();
+                        long points = writeObject(writer, object, transform, buffer, exported);
+                        if (viewStateObjects != null) {
+                            for (int i = count; i < writer.getCount(); i++)
+                                viewStateObjects.add(object.pathObject);
+                        }
+                        if (object.polygons == null)
+                            reused[0]++;
+                        written[0]++;
+                        progress.add(writer.getCount() - count, points);
+                        nPoints += points;
+                    }
+                    event.finish(writer.getCount() - startCount, nPoints, stream.getCount() - startPosition);
+                };
+
+                try {
+                    for (int start = 0; start < nObjects; start += CHUNK_OBJECTS) {
+                        int end = Math.min(start + CHUNK_OBJECTS, nObjects);
+                        var chunk = objects.subList(start, end);
+                        var chunkColors = Arrays.copyOfRange(colors, start, end);
+                        if (!parallel) {
+                            chunkWriter.write(prepareChunk(name, chunk, chunkColors, cached, aborted));
+                            continue;
+                        }
+                        tasks.add(ForkJoinPool.commonPool().submit(() -> prepareChunk(name, chunk, chunkColors, cached, aborted)));
+                        if (tasks.size() >= maxTasks)
+                            chunkWriter.write(tasks.poll().join());
+                    }
+                    // Serialisation order is the order of the objects, whichever chunk finished first
+                    while (!tasks.isEmpty())
+                        chunkWriter.write(tasks.poll().join());
+                } catch (IOException | RuntimeException e) {
+                    // Cancelling a fork-join task doesn't stop it once it has started, so the chunks stop themselves
+                    // and are waited for, rather than simplifying in the background after the failure is reported
+                    aborted.set(true);
+                    for (var task : tasks)
+                        task.quietlyJoin();
+                    throw e;
+                }
+
+                progress.done();
+                logger.info("Exported {} NDPA annotations to {} ({} of {} objects unchanged since the last export)",
+                        writer.getCount(), ndpaFile, reused[0], nObjects);
+                closeEvent = NdpaStageEvent.start(NdpaStageEvent.Stage.WRITE, name);
+                closePosition = stream.getCount();
+            }
+            // Neither a backup nor a rewrite is needed if the NDPA file already has exactly this content
+            long size = Files.size(tempFile);
+            boolean unchanged = hasContent(target, size, HexFormat.of().formatHex(digest.digest()));
+            if (!unchanged) {
+                // Make sure the content is on disk before the file is renamed
+                try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+            closeEvent.finish(0, 0, size - closePosition);
+
+            if (unchanged) {
+                logger.info("{} is unchanged, leaving it alone", ndpaFile);
+            } else {
+                // Backup any existing ndpa file
+                if (backup && Files.exists(target))
+                    backupFile = backupNdpaFile(target);
+                moveIntoPlace(tempFile, target);
+                committed = true;
+                // Don't reload our own export in the viewer
+                NdpaFileWatcher.recordWrite(target);
+            }
+            exportCache.put(ndpaFile, imageInfo, exported);
+            metrics.recordExport(progress.annotations, progress.points);
+            return committed;
+        } finally {
+            if (!committed) {
+                // The NDPA file is untouched, so neither the temporary file nor any backup is needed
+                try {
+                    Files.deleteIfExists(tempFile);
+                    if (backupFile != null)
+                        Files.deleteIfExists(backupFile);
+                } catch (IOException e) {
+                    logger.warn("Unable to delete {}: {}", tempFile, e.getMessage());
+                }
             }
         }
+    }
 
-        // We need the pixel size
-        var cal = server.getPixelCalibration();
-        if (!cal.hasPixelSizeMicrons()) {
-            logger.error("No pixel information for this image!");
+    /**
+     * Check whether a file has the given size and SHA-256 hash. The file is only read if the size matches.
+     */
+    private static boolean hasContent(Path file, long size, String hash) throws IOException {
+        if (!Files.isRegularFile(file) || Files.size(file) != size)
             return false;
-        }
+        return hash.equals(NdpaImportManifest.hashFile(file));
+    }
 
-        double pixelWidthNm = cal.getPixelWidthMicrons() * 1000;
-        double pixelHeightNm = cal.getPixelHeightMicrons() * 1000;
-        
-        double imageCenter_X = server.getWidth() / 2.0;
-        double imageCenter_Y = server.getHeight() / 2.0;
+    /**
+     * Back up an NDPA file before it is replaced. Since the file is replaced rather than overwritten,
+     * a hard link to it is enough where the file system supports it; otherwise it is copied.
+     *
+     * @param ndpaFile The NDPA file
+     * @return The backup file
+     * @throws IOException if the backup could not be created
+     */
+    private static Path backupNdpaFile(Path ndpaFile) throws IOException {
+        Path backupFile = getBackupNdpaFile(ndpaFile.toFile()).toPath();
+        logger.info("Creating backup: {}", backupFile.toAbsolutePath());
+        try {
+            Files.createLink(backupFile, ndpaFile);
+        } catch (UnsupportedOperationException | IOException e) {
+            logger.debug("Unable to link {} to {}, copying it instead: {}", backupFile, ndpaFile, e.getMessage());
+            Files.copy(ndpaFile, backupFile);
+        }
+        return backupFile;
+    }
 
-        //Aperio Image Scope displays images in a different orientation
-        boolean rotated = false;
+    /**
+     * Replace a file with another one in the same directory, atomically if the file system allows it,
+     * and flush the directory so that the rename survives a crash
+     */
+    private static void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            logger.warn("Unable to replace {} atomically: {}", target, e.getMessage());
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        forceDirectory(target.toAbsolutePath().getParent());
+    }
 
-        // need to add annotations to hierarchy so qupath sees them
-        var hierarchy = imageData.getHierarchy();
-            
-        //Get X Reference from OPENSLIDE data
-        //The Open slide numbers are actually offset from IMAGE center (not physical slide center). 
-        double[] offset = getOffsetUsingOpenSlide(server);
-        double offsetFromTopLeftX = offset[0];
-        double offsetFromTopLeftY = offset[1];
+    /**
+     * Flush the entries of a directory to disk. Directories can't be opened on every platform (e.g. Windows,
+     * where the file system commits renames itself), in which case this does nothing.
+     */
+    private static void forceDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            logger.debug("Unable to flush {}: {}", dir, e.getMessage());
+        }
+    }
 
-        logger.info("offset: {} {}", offsetFromTopLeftX, offsetFromTopLeftY);
+    /**
+     * Writes a chunk of prepared objects, in order
+     */
+    @FunctionalInterface
+    private interface ChunkWriter {
+        void write(List<ExportObject> chunk) throws IOException;
+    }
 
-        // need to add annotations to hierarchy so qupath sees them
-        List<PathObject> pathObjects = new ArrayList<>(hierarchy.getAnnotationObjects());
+    /**
+     * An object about to be exported, with either its cached fragments or the polygons to write
+     */
+    private static class ExportObject {
+
+        private final PathObject pathObject;
+        private final int color;
+        private final long fingerprint;
+        private final NdpaExportCache.CachedObject cached;
+        private final List<Polygon> polygons;
+
+        private ExportObject(PathObject pathObject, int color, long fingerprint,
+                             NdpaExportCache.CachedObject cached, List<Polygon> polygons) {
+            this.pathObject = pathObject;
+            this.color = color;
+            this.fingerprint = fingerprint;
+            this.cached = cached;
+            this.polygons = polygons;
+        }
+    }
 
-        //create a list of annotations
-        List<Map<String, Object>> listAnnot = new ArrayList<>();
-        int ndpIndex = 0;
+    /**
+     * Prepare a chunk of objects for export: look up their cached fragments, and get the polygons to export
+     * for those that have changed
+     *
+     * @param name The name of the file, for the flight recorder events
+     * @param chunk The objects
+     * @param colors The packed RGB colour of each object of the chunk
+     * @param cached The fragments of the last export to the same file, keyed by object ID
+     * @param aborted Set if the export has failed, in which case the chunk is abandoned
+     * @return The prepared objects, in the order of the objects
+     * @throws CancellationException if the export has failed
+     */
+    private static List<ExportObject> prepareChunk(String name, List<PathObject> chunk, int[] colors,
+                                                   Map<String, NdpaExportCache.CachedObject> cached, AtomicBoolean aborted) {
+        NdpaStageEvent event = NdpaStageEvent.start(NdpaStageEvent.Stage.SIMPLIFY, name);
+        List<ExportObject> prepared = new ArrayList<>(chunk.size());
+        int nSimplified = 0;
+        long nPoints = 0;
+        for (int i = 0; i < chunk.size(); i++) {
+            if (aborted.get())
+                throw new CancellationException("NDPA export abandoned");
+            PathObject pathObject = chunk.get(i);
+            int color = colors[i];
+            long fingerprint = NdpaExportCache.fingerprint(pathObject, color);
+            var cachedObject = cached.get(pathObject.getID().toString());
+            if (cachedObject != null && cachedObject.getFingerprint() == fingerprint) {
+                prepared.add(new ExportObject(pathObject, color, fingerprint, cachedObject, null));
+                continue;
+            }
+            var polygons = getExportPolygons(pathObject);
+            for (var polygon : polygons)
+                nPoints += polygon.getNumPoints();
+            nSimplified++;
+            prepared.add(new ExportObject(pathObject, color, fingerprint, null, polygons));
+        }
+        event.finish(nSimplified, nPoints, 0);
+        return prepared;
+    }
 
-        ToLongFunction<Double> transformX = x -> (long) ((x - offsetFromTopLeftX) * pixelWidthNm);
-        ToLongFunction<Double> transformY = y -> (long) ((y - offsetFromTopLeftY) * pixelHeightNm);
+    /**
+     * Write an object, from its cached fragments if it hasn't changed, and add its fragments to the export cache
+     *
+     * @param writer The NDPA writer
+     * @param object The prepared object
+     * @param transform The nanometre to pixel transform
+     * @param buffer Buffer for the ring coordinates
+     * @param exported The fragments of this export
+     * @return The number of points written
+     * @throws IOException if the object could not be written
+     */
+    private static long writeObject(NdpaWriter writer, ExportObject object, NdpaTransform transform, PointBuffer buffer,
+                                    NdpaExportCache.Collector exported) throws IOException {
+        String id = object.pathObject.getID().toString();
+        if (object.cached != null) {
+            for (String fragment : object.cached.getFragments())
+                writer.writeFragment(fragment);
+            exported.add(id, object.cached);
+            return object.cached.getPoints();
+        }
 
+        var cachedObject = exported.start(id, object.fingerprint);
+        // The export went over the size of the cache, so the fragments aren't kept
+        if (cachedObject == null)
+            return writePolygons(writer, object.pathObject, object.polygons, transform, object.color, buffer);
+        writer.setFragmentSink(fragment -> exported.addFragment(cachedObject, fragment));
         try {
-            for (PathObject pathObject : pathObjects) {
-                //We make a list of polygons, each has an exterior and interior rings
-                var geometry = pathObject.getROI().getGeometry();
-
-                //Here we do some processing to simplify the outlines and remove small holes
-                geometry = TopologyPreservingSimplifier.simplify(geometry, 5.0);
-                geometry = GeometryTools.refineAreas(geometry, 200, 200);
-                List<org.locationtech.jts.geom.Polygon> polygons = PolygonExtracter.getPolygons(geometry);
-
-                for (int p = 0; p < polygons.size(); p++) {
-                    var polygon = polygons.get(p);
-
-                    //here we create a list of rings, we'll need to treat the first one differently
-                    List<org.locationtech.jts.geom.LineString> rings = new ArrayList<>();
-                    rings.add(polygon.getExteriorRing());
-                    
-                    int nRings = polygon.getNumInteriorRing();
-                    for (int i = 0; i < nRings; i++) {
-                        var ring = polygon.getInteriorRingN(i);
-                        rings.add(ring);
-                    }
+            long points = writePolygons(writer, object.pathObject, object.polygons, transform, object.color, buffer);
+            cachedObject.addPoints(points);
+            return points;
+        } finally {
+            writer.setFragmentSink(null);
+        }
+    }
 
-                    for (int index = 0; index < rings.size(); index++) {
-                        var ring = rings.get(index);
-                        Map<String, Object> annot = new HashMap<>();
-                        
-                        if (index == 0) {
-                            annot.put("title", pathObject.getName());
-                            annot.put("details", pathObject.getPathClass() != null ? 
-                                               pathObject.getPathClass().toString() : "");
-                            annot.put("color", "#" + Integer.toHexString(ColorToolsFX.getDisplayedColorARGB(pathObject)).substring(2));
-                        } else {
-                            annot.put("title", "clear");
-                            annot.put("details", "clear");
-                            annot.put("color", "#000000");
-                        }
+    /**
+     * Aggregated figures of one import, logged as a single line once the file has been read
+     */
+    private static class ImportSummary {
 
-                        annot.put("id", ++ndpIndex);
-                        annot.put("coordformat", "nanometers");
-                        annot.put("lens", 0.445623);
-                        annot.put("x", (int) imageCenter_X);
-                        annot.put("y", (int) imageCenter_Y);
-                        annot.put("z", 0);
-                        annot.put("showtitle", 0);
-                        annot.put("showhistogram", 0);
-                        annot.put("showlineprofile", 0);
-                        annot.put("type", "freehand");
-                        annot.put("displayname", "AnnotateFreehand");
-                        annot.put("measuretype", 0);
-                        annot.put("closed", 1);
-
-                        //add the point list
-                        annot.put("pointlist", getPointList(ring));
-                        listAnnot.add(annot);
-                    }
-                }
-            }
+        private final String parser;
+        private final Map<String, Integer> types = new TreeMap<>();
+        private long vertices;
+        private long parseNanos;
+        // Chunks may be converted on several threads at once
+        private final LongAdder roiNanos = new LongAdder();
 
-            //make an XML string
-            StringBuilder xml = new StringBuilder();
-            xml.append("<?xml version=\"1.0\" encoding=\"utf-8\" standalone=\"yes\"?>\n");
-            xml.append("<annotations>\n");
-
-            for (Map<String, Object> annot : listAnnot) {
-                xml.append("  <ndpviewstate id=\"").append(annot.get("id")).append("\">\n");
-                xml.append("    <title>").append(annot.get("title")).append("</title>\n");
-                xml.append("    <details>").append(annot.get("details")).append("</details>\n");
-                xml.append("    <coordformat>").append(annot.get("coordformat")).append("</coordformat>\n");
-                xml.append("    <lens>").append(annot.get("lens")).append("</lens>\n");
-                xml.append("    <x>").append(annot.get("x")).append("</x>\n");
-                xml.append("    <y>").append(annot.get("y")).append("</y>\n");
-                xml.append("    <z>").append(annot.get("z")).append("</z>\n");
-                xml.append("    <showtitle>").append(annot.get("showtitle")).append("</showtitle>\n");
-                xml.append("    <showhistogram>").append(annot.get("showhistogram")).append("</showhistogram>\n");
-                xml.append("    <showlineprofile>").append(annot.get("showlineprofile")).append("</showlineprofile>\n");
-
-                xml.append("    <annotation type=\"").append(annot.get("type"))
-                .append("\" displayname=\"").append(annot.get("displayname"))
-                .append("\" color=\"").append(annot.get("color")).append("\">\n");
-
-                xml.append("      <measuretype>").append(annot.get("measuretype")).append("</measuretype>\n");
-                xml.append("      <closed>").append(annot.get("closed")).append("</closed>\n");
-                xml.append("      <pointlist>\n");
-
-                @SuppressWarnings("unchecked")
-                List<double[]> pointlist = (List<double[]>) annot.get("pointlist");
-                for (double[] pt : pointlist) {
-                    xml.append("        <point>\n");
-                    xml.append("          <x>").append(transformX.applyAsLong(pt[0])).append("</x>\n");
-                    xml.append("          <y>").append(transformY.applyAsLong(pt[1])).append("</y>\n");
-                    xml.append("        </point>\n");
-                }
+        private ImportSummary(String parser) {
+            this.parser = parser;
+        }
+
+        private void addType(NdpaAnnotation ndpa) {
+            String specialType = ndpa.getSpecialType();
+            String type = specialType == null || specialType.isEmpty() ? ndpa.getType() : ndpa.getType() + "/" + specialType;
+            types.merge(type, 1, Integer::sum);
+            vertices += ndpa.getNumPoints();
+        }
+
+        /**
+         * Format the summary as key=value pairs
+         */
+        private String toString(File file, int nObjects, long bytes, long elapsedNanos) {
+            double seconds = Math.max(elapsedNanos, 1) / 1e9;
+            int nAnnotations = types.values().stream().mapToInt(Integer::intValue).sum();
+            return String.format(Locale.ROOT,
+                    "NDPA import file=%s parser=%s annotations=%d objects=%d types=%s vertices=%d bytes=%d " +
+                            "parseMs=%.1f roiBuildMs=%.1f elapsedMs=%.1f annotationsPerSec=%.0f verticesPerSec=%.0f",
+                    file, parser, nAnnotations, nObjects, types, vertices, bytes,
+                    parseNanos / 1e6, roiNanos.sum() / 1e6, elapsedNanos / 1e6,
+                    nAnnotations / seconds, vertices / seconds);
+        }
+    }
 
-                xml.append("      </pointlist>\n");
-                xml.append("    </annotation>\n");
-                xml.append("  </ndpviewstate>\n");
+    /**
+     * Keeps track of the annotations and points processed, and reports to an optional monitor
+     */
+    private static class ProgressTracker {
+
+        // Number of annotations between two reports
+        private static final int REPORT_INTERVAL = 256;
+
+        private final NdpaProgressMonitor monitor;
+        private final DoubleSupplier fraction;
+        private long annotations;
+        private long points;
+        private long lastReport;
+
+        private ProgressTracker(NdpaProgressMonitor monitor, DoubleSupplier fraction) {
+            this.monitor = monitor;
+            this.fraction = fraction;
+        }
+
+        private void add(long nAnnotations, long nPoints) {
+            annotations += nAnnotations;
+            points += nPoints;
+            if (monitor != null && annotations - lastReport >= REPORT_INTERVAL) {
+                lastReport = annotations;
+                report(Math.min(fraction.getAsDouble(), 1.0));
             }
+        }
 
-            xml.append("</annotations>\n");
+        private void done() {
+            if (monitor != null)
+                report(1.0);
+        }
 
-            FileWriter fileWriter = new FileWriter(ndpaFile);
-            fileWriter.write(xml.toString());
-            fileWriter.close();
+        private void report(double progress) {
+            if (monitor.isCancelled())
+                throw new CancellationException("NDPA operation cancelled");
+            monitor.update(annotations, points, progress);
+        }
+    }
 
-            return true;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
+    /**
+     * Input stream counting the bytes read, to report the progress through a file
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private volatile long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        private long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Output stream counting the bytes written, for the flight recorder events
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        private long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
         }
     }
 }
@@ -0,0 +1,62 @@
+package qupath.ext.ndpa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import qupath.ext.ndpa.core.FakeNdpiWriter;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+class NdpaCliTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void statisticsAreTheOnlyOutput() throws IOException {
+        Path slide = dir.resolve("slide.ndpi");
+        FakeNdpiWriter.write(slide, FakeNdpiWriter.DEFAULT_IMAGE_INFO);
+        var plane = ImagePlane.getDefaultPlane();
+        List<PathObject> exported = List.of(
+                PathObjects.createAnnotationObject(ROIs.createRectangleROI(1000, 2000, 3000, 4000, plane)),
+                PathObjects.createAnnotationObject(ROIs.createPolygonROI(
+                        new double[] { 50_000, 60_000, 55_000 }, new double[] { 10_000, 10_000, 30_000 }, plane)));
+        NdpaTools.writeNDPAObjects(new File(slide + ".ndpa"), FakeNdpiWriter.DEFAULT_IMAGE_INFO, exported,
+                pathObject -> 0xFF0000, false, null);
+
+        PrintStream stdout = System.out;
+        var captured = new ByteArrayOutputStream();
+        int exitCode;
+        try {
+            System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+            exitCode = NdpaCli.run(new String[] { "to-geojson", "--threads", "2", "--parallel", dir.toString() });
+        } finally {
+            System.setOut(stdout);
+        }
+        assertEquals(0, exitCode);
+
+        JsonObject stats = JsonParser.parseString(captured.toString(StandardCharsets.UTF_8)).getAsJsonObject();
+        assertEquals("to-geojson", stats.get("command").getAsString());
+        assertEquals(1, stats.get("files").getAsInt());
+        assertEquals(1, stats.get("succeeded").getAsInt());
+        assertEquals(exported.size(), stats.get("annotations").getAsInt());
+        assertEquals(1, stats.getAsJsonArray("results").size());
+        assertTrue(new File(slide + ".geojson").isFile());
+    }
+}
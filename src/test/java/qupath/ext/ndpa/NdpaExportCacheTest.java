@@ -0,0 +1,93 @@
+package qupath.ext.ndpa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.ext.ndpa.core.NdpiImageInfo;
+
+class NdpaExportCacheTest {
+
+    private static final NdpiImageInfo IMAGE_INFO = new NdpiImageInfo(1000, 1000, 250, 250, 0, 0);
+
+    @Test
+    void reusesFragmentsOfTheLastExport() {
+        var cache = new NdpaExportCache(1000);
+        File file = new File("a.ndpi.ndpa");
+        cache.put(file, IMAGE_INFO, export(cache, 3, 10));
+        assertEquals(30, cache.getChars());
+
+        var cached = cache.get(file, IMAGE_INFO);
+        assertEquals(3, cached.size());
+        assertEquals(1, cached.get("0").getFingerprint());
+        assertTrue(cache.get(file, new NdpiImageInfo(1000, 1000, 500, 500, 0, 0)).isEmpty());
+
+        // Objects written from the cache are kept for the next export
+        var collector = cache.collect();
+        collector.add("0", cached.get("0"));
+        cache.put(file, IMAGE_INFO, collector);
+        assertSame(cached.get("0"), cache.get(file, IMAGE_INFO).get("0"));
+        assertEquals(10, cache.getChars());
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    void stopsCollectingOverTheLimit() {
+        var cache = new NdpaExportCache(95);
+        File file = new File("a.ndpi.ndpa");
+        cache.put(file, IMAGE_INFO, export(cache, 2, 10));
+
+        // The tenth fragment goes over the limit
+        var collector = cache.collect();
+        for (int i = 0; i < 20; i++) {
+            var object = collector.start(Integer.toString(i), i);
+            if (i < 10) {
+                assertNotNull(object);
+                collector.addFragment(object, "x".repeat(10));
+            } else {
+                assertNull(object);
+            }
+        }
+        collector.addFragment(collector.start("late", 0), "x");
+        cache.put(file, IMAGE_INFO, collector);
+        assertTrue(cache.get(file, IMAGE_INFO).isEmpty());
+        assertEquals(0, cache.getChars());
+    }
+
+    @Test
+    void dropsLeastRecentlyExportedFiles() {
+        var cache = new NdpaExportCache(100);
+        File a = new File("a.ndpi.ndpa");
+        File b = new File("b.ndpi.ndpa");
+        File c = new File("c.ndpi.ndpa");
+        cache.put(a, IMAGE_INFO, export(cache, 4, 10));
+        cache.put(b, IMAGE_INFO, export(cache, 4, 10));
+        cache.get(a, IMAGE_INFO);
+        cache.put(c, IMAGE_INFO, export(cache, 4, 10));
+        assertEquals(4, cache.get(a, IMAGE_INFO).size());
+        assertTrue(cache.get(b, IMAGE_INFO).isEmpty());
+        assertEquals(4, cache.get(c, IMAGE_INFO).size());
+
+        cache.remove(a);
+        assertTrue(cache.get(a, IMAGE_INFO).isEmpty());
+        assertEquals(40, cache.getChars());
+
+        cache.setMaxChars(0);
+        assertTrue(cache.get(c, IMAGE_INFO).isEmpty());
+        assertEquals(0, cache.getChars());
+    }
+
+    private static NdpaExportCache.Collector export(NdpaExportCache cache, int nObjects, int nChars) {
+        var collector = cache.collect();
+        for (int i = 0; i < nObjects; i++)
+            collector.addFragment(collector.start(Integer.toString(i), i + 1), "x".repeat(nChars));
+        return collector;
+    }
+}
@@ -0,0 +1,233 @@
+package qupath.ext.ndpa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.ext.ndpa.NdpaImportManifest.Changes;
+import qupath.ext.ndpa.NdpaImportManifest.Sync;
+import qupath.ext.ndpa.core.NdpaAnnotation;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+class NdpaImportManifestTest {
+
+    private static final String SETTINGS = "settings";
+
+    private final ImageData<BufferedImage> imageData = new ImageData<>(null);
+
+    @Test
+    void firstImportAddsEverything() {
+        Changes changes = sync(List.of(pin("1", 1), pin("2", 2)), "a");
+        assertEquals(2, changes.getAdded().size());
+        assertTrue(changes.getRemoved().isEmpty());
+        assertEquals(0, changes.getUnchanged());
+        changes.apply(imageData);
+        assertEquals(2, objects().size());
+    }
+
+    @Test
+    void reimportKeepsUnchangedObjects() {
+        sync(List.of(pin("1", 1), pin("2", 2)), "a").apply(imageData);
+        List<PathObject> before = objects();
+
+        Changes changes = sync(List.of(pin("1", 1), pin("2", 2)), "b");
+        assertTrue(changes.isEmpty());
+        assertEquals(2, changes.getUnchanged());
+        changes.apply(imageData);
+        assertEquals(before, objects());
+    }
+
+    @Test
+    void reimportReplacesChangedAndRemovesDeletedAnnotations() {
+        sync(List.of(pin("1", 1), pin("2", 2), pin("3", 3)), "a").apply(imageData);
+        PathObject first = find(1);
+        PathObject second = find(2);
+        PathObject third = find(3);
+
+        Changes changes = sync(List.of(pin("1", 1), pin("2", 20), pin("4", 4)), "b");
+        assertEquals(2, changes.getAdded().size());
+        assertEquals(List.of(second, third), changes.getRemoved());
+        assertEquals(1, changes.getUnchanged());
+        changes.apply(imageData);
+
+        assertEquals(3, objects().size());
+        assertSame(first, find(1));
+        assertNotNull(find(20));
+        assertNotNull(find(4));
+        assertNull(find(2));
+        assertNull(find(3));
+    }
+
+    @Test
+    void objectsDeletedInQuPathAreNotBroughtBack() {
+        sync(List.of(pin("1", 1), pin("2", 2)), "a").apply(imageData);
+        imageData.getHierarchy().removeObjects(List.of(find(2)), true);
+
+        Changes changes = sync(List.of(pin("1", 1), pin("2", 2)), "b");
+        assertTrue(changes.isEmpty());
+        changes.apply(imageData);
+        assertEquals(1, objects().size());
+
+        // ...until their annotation changes
+        changes = sync(List.of(pin("1", 1), pin("2", 22)), "c");
+        assertEquals(1, changes.getAdded().size());
+        assertTrue(changes.getRemoved().isEmpty());
+    }
+
+    @Test
+    void explicitImportRestoresDeletedObjects() {
+        sync(List.of(pin("1", 1), pin("2", 2)), "a").apply(imageData);
+        PathObject first = find(1);
+        imageData.getHierarchy().removeObjects(List.of(find(2)), true);
+
+        Changes changes = sync(List.of(pin("1", 1), pin("2", 2)), "a", true);
+        assertEquals(1, changes.getAdded().size());
+        assertTrue(changes.getRemoved().isEmpty());
+        assertEquals(1, changes.getUnchanged());
+        changes.apply(imageData);
+        assertSame(first, find(1));
+        assertNotNull(find(2));
+
+        // The restored object is the one matched from now on
+        changes = sync(List.of(pin("1", 1), pin("2", 2)), "a", true);
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    void objectsExportedAsSeveralAnnotationsAreRebuiltWhenOneChanges() {
+        // An object exported as two polygons, recorded in the manifest as the export does
+        PathObject exported = PathObjects.createAnnotationObject(
+                ROIs.createPointsROI(1, 1, ImagePlane.getDefaultPlane()));
+        imageData.getHierarchy().addObject(exported);
+        var export = new Sync(null, SETTINGS, List.of(), false);
+        for (NdpaAnnotation ndpa : List.of(pin("1", 1), pin("2", 2)))
+            export.getObject(ndpa, annotation -> exported);
+        export.finish("a", SETTINGS, List.of()).apply(imageData);
+
+        assertTrue(sync(List.of(pin("1", 1), pin("2", 2)), "a").isEmpty());
+
+        // Only the second polygon is edited in the file
+        Changes changes = sync(List.of(pin("1", 1), pin("2", 20)), "b");
+        assertEquals(List.of(exported), changes.getRemoved());
+        assertEquals(2, changes.getAdded().size());
+        assertEquals(0, changes.getUnchanged());
+        changes.apply(imageData);
+
+        assertEquals(2, objects().size());
+        assertFalse(objects().contains(exported));
+        assertNotNull(find(1));
+        assertNotNull(find(20));
+
+        // The new objects are matched from now on
+        changes = sync(List.of(pin("1", 1), pin("2", 20)), "b");
+        assertTrue(changes.isEmpty());
+        assertEquals(2, changes.getUnchanged());
+    }
+
+    @Test
+    void renumberedAnnotationsAreMatchedByContent() {
+        sync(List.of(pin("1", 1), pin("2", 2), pin("3", 3)), "a").apply(imageData);
+        List<PathObject> before = objects();
+
+        Changes changes = sync(List.of(pin("7", 3), pin("8", 1), pin("9", 2)), "b");
+        assertTrue(changes.isEmpty());
+        assertEquals(3, changes.getUnchanged());
+        changes.apply(imageData);
+        assertEquals(before, objects());
+
+        // Duplicates are matched once each
+        changes = sync(List.of(pin("1", 1), pin("2", 1), pin("3", 2), pin("4", 3)), "c");
+        assertEquals(1, changes.getAdded().size());
+        assertEquals(3, changes.getUnchanged());
+    }
+
+    @Test
+    void changedSettingsReplaceEverything() {
+        sync(List.of(pin("1", 1), pin("2", 2)), "a").apply(imageData);
+        List<PathObject> before = objects();
+
+        var manifest = NdpaImportManifest.read(imageData);
+        var sync = new Sync(manifest, "other settings", objects(), false);
+        var annotations = List.of(pin("1", 1), pin("2", 2));
+        Changes changes = sync.finish("b", "other settings", convert(sync, annotations));
+        assertEquals(2, changes.getAdded().size());
+        assertEquals(before.size(), changes.getRemoved().size());
+        assertTrue(changes.getRemoved().containsAll(before));
+    }
+
+    @Test
+    void manifestIsStoredAsAProperty() {
+        assertNull(NdpaImportManifest.read(imageData));
+        sync(List.of(pin("1", 1), pin("id;with;separators", 2)), "hash").apply(imageData);
+
+        var manifest = NdpaImportManifest.read(imageData);
+        assertNotNull(manifest);
+        assertTrue(manifest.isUpToDate("hash", SETTINGS));
+        assertFalse(manifest.isUpToDate("other hash", SETTINGS));
+        assertFalse(manifest.isUpToDate("hash", "other settings"));
+
+        // Ids containing the separator are read back, and still match
+        Changes changes = sync(List.of(pin("1", 1), pin("id;with;separators", 2)), "hash");
+        assertTrue(changes.isEmpty());
+
+        imageData.setProperty(NdpaImportManifest.PROPERTY_KEY, "0;unknown;version");
+        assertNull(NdpaImportManifest.read(imageData));
+    }
+
+    private Changes sync(List<NdpaAnnotation> annotations, String fileHash) {
+        return sync(annotations, fileHash, false);
+    }
+
+    private Changes sync(List<NdpaAnnotation> annotations, String fileHash, boolean restoreDeleted) {
+        var sync = new Sync(NdpaImportManifest.read(imageData), SETTINGS, objects(), restoreDeleted);
+        return sync.finish(fileHash, SETTINGS, convert(sync, annotations));
+    }
+
+    private static List<PathObject> convert(Sync sync, List<NdpaAnnotation> annotations) {
+        List<PathObject> pathObjects = new ArrayList<>();
+        for (NdpaAnnotation ndpa : annotations) {
+            PathObject pathObject = sync.getObject(ndpa, NdpaImportManifestTest::toPathObject);
+            if (pathObject != null)
+                pathObjects.add(pathObject);
+        }
+        return pathObjects;
+    }
+
+    private static PathObject toPathObject(NdpaAnnotation ndpa) {
+        var pathObject = PathObjects.createAnnotationObject(
+                ROIs.createPointsROI(ndpa.getX()[0], ndpa.getY()[0], ImagePlane.getDefaultPlane()));
+        pathObject.setName(ndpa.getTitle());
+        return pathObject;
+    }
+
+    private static NdpaAnnotation pin(String id, int value) {
+        return new NdpaAnnotation(id, Integer.toString(value), "", "PIN", "#FF0000", "",
+                new double[] { value }, new double[] { value }, Double.NaN);
+    }
+
+    private List<PathObject> objects() {
+        return new ArrayList<>(imageData.getHierarchy().getAnnotationObjects());
+    }
+
+    private PathObject find(int value) {
+        for (PathObject pathObject : objects()) {
+            if (Objects.equals(Integer.toString(value), pathObject.getName()))
+                return pathObject;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,174 @@
+package qupath.ext.ndpa;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import qupath.ext.ndpa.core.FakeNdpiWriter;
+import qupath.ext.ndpa.core.NdpaAnnotation;
+import qupath.ext.ndpa.core.NdpaReader;
+import qupath.ext.ndpa.core.NdpaWriter;
+import qupath.ext.ndpa.core.NdpiImageInfo;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+class NdpaToolsTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void exportedObjectsAreImportedAtTheSamePlace() throws IOException {
+        Path slide = dir.resolve("slide.ndpi");
+        var imageData = new ImageData<BufferedImage>(new FakeNdpiServer(slide, FakeNdpiWriter.DEFAULT_IMAGE_INFO));
+        var plane = ImagePlane.getDefaultPlane();
+        List<PathObject> exported = List.of(
+                PathObjects.createAnnotationObject(ROIs.createRectangleROI(1000, 2000, 3000, 4000, plane)),
+                PathObjects.createAnnotationObject(ROIs.createPolygonROI(
+                        new double[] { 50_000, 60_000, 55_000 }, new double[] { 10_000, 10_000, 30_000 }, plane)));
+
+        File ndpaFile = new File(slide + ".ndpa");
+        NdpaTools.writeNDPAObjects(ndpaFile, NdpiImageInfo.read(slide), exported, pathObject -> 0xFF0000, false, null);
+        assertTrue(ndpaFile.isFile());
+
+        var changes = NdpaTools.readNDPAChanges(imageData, List.of(), null, false, null);
+        assertEquals(exported.size(), changes.getAdded().size());
+        for (int i = 0; i < exported.size(); i++)
+            assertSameBounds(exported.get(i).getROI(), changes.getAdded().get(i).getROI());
+        changes.apply(imageData);
+
+        // The file hasn't changed, so a reload doesn't read it again, and an explicit import finds nothing new
+        for (boolean restoreDeleted : new boolean[] { false, true }) {
+            changes = NdpaTools.readNDPAChanges(imageData, imageData.getHierarchy().getAnnotationObjects(), null, true,
+                    restoreDeleted, null);
+            assertTrue(changes.isEmpty());
+            assertEquals(exported.size(), changes.getUnchanged());
+        }
+
+        // ...unless an object was deleted, which only an explicit import brings back
+        var deleted = imageData.getHierarchy().getAnnotationObjects().iterator().next();
+        imageData.getHierarchy().removeObjects(List.of(deleted), true);
+        assertTrue(NdpaTools.readNDPAChanges(imageData, imageData.getHierarchy().getAnnotationObjects(), null, false,
+                false, null).isEmpty());
+        changes = NdpaTools.readNDPAChanges(imageData, imageData.getHierarchy().getAnnotationObjects(), null, false, null);
+        assertEquals(1, changes.getAdded().size());
+        changes.apply(imageData);
+        assertEquals(exported.size(), imageData.getHierarchy().getAnnotationObjects().size());
+    }
+
+    @Test
+    void parallelImportKeepsDocumentOrder() throws IOException {
+        Path slide = dir.resolve("slide.ndpi");
+        FakeNdpiWriter.write(slide, FakeNdpiWriter.DEFAULT_IMAGE_INFO);
+        var imageInfo = NdpiImageInfo.read(slide);
+        var plane = ImagePlane.getDefaultPlane();
+        List<PathObject> exported = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            var pathObject = PathObjects.createAnnotationObject(ROIs.createRectangleROI(i * 10, i * 5, 200, 100, plane));
+            pathObject.setName(Integer.toString(i));
+            exported.add(pathObject);
+        }
+
+        File ndpaFile = new File(slide + ".ndpa");
+        NdpaTools.writeNDPAObjects(ndpaFile, imageInfo, exported, pathObject -> 0x00FF00, true, null);
+
+        var imported = NdpaTools.readNDPAObjects(ndpaFile, imageInfo, null, true, null);
+        assertEquals(exported.size(), imported.size());
+        for (int i = 0; i < exported.size(); i++) {
+            assertEquals(exported.get(i).getName(), imported.get(i).getName());
+            assertSameBounds(exported.get(i).getROI(), imported.get(i).getROI());
+        }
+    }
+
+    @Test
+    void xmlParserFallbackDoesNotDuplicateUnchangedAnnotations() throws IOException {
+        Path slide = dir.resolve("slide.ndpi");
+        var imageData = new ImageData<BufferedImage>(new FakeNdpiServer(slide, FakeNdpiWriter.DEFAULT_IMAGE_INFO));
+        Path ndpaFile = Path.of(slide + ".ndpa");
+        int nAnnotations = 600;
+        try (OutputStream stream = Files.newOutputStream(ndpaFile);
+             NdpaWriter writer = new NdpaWriter(stream, 0, 0)) {
+            for (int i = 0; i < nAnnotations; i++) {
+                writer.writeAnnotation(new NdpaAnnotation(null, "Pin " + i, "", "PIN", "#FF0000", "",
+                        new double[] { i * 1000 }, new double[] { i * 1000 }, Double.NaN));
+            }
+        }
+        NdpaTools.readNDPAChanges(imageData, List.of(), null, false, null).apply(imageData);
+        assertEquals(nAnnotations, imageData.getHierarchy().getAnnotationObjects().size());
+
+        // Same annotations, but the fast scanner gives up on the last one after converting the others
+        String text = Files.readString(ndpaFile);
+        String last = "<title>Pin " + (nAnnotations - 1) + "</title>";
+        assertTrue(text.contains(last));
+        Files.writeString(ndpaFile, text.replace(last, "<title><![CDATA[Pin " + (nAnnotations - 1) + "]]></title>"));
+
+        for (boolean parallel : new boolean[] { false, true }) {
+            var changes = NdpaTools.readNDPAChanges(imageData, imageData.getHierarchy().getAnnotationObjects(),
+                    null, parallel, null);
+            assertTrue(changes.isEmpty(), changes.toString());
+            assertEquals(nAnnotations, changes.getUnchanged());
+        }
+    }
+
+    @Test
+    void exportedObjectsAreNotReloadedAsNewObjects() throws IOException {
+        Path slide = dir.resolve("slide.ndpi");
+        var imageData = new ImageData<BufferedImage>(new FakeNdpiServer(slide, FakeNdpiWriter.DEFAULT_IMAGE_INFO));
+        var plane = ImagePlane.getDefaultPlane();
+        var hierarchy = imageData.getHierarchy();
+        hierarchy.addObjects(List.of(
+                PathObjects.createAnnotationObject(ROIs.createRectangleROI(1000, 2000, 3000, 4000, plane)),
+                PathObjects.createAnnotationObject(ROIs.createRectangleROI(5000, 6000, 700, 800, plane))));
+        NdpaTools.writeNDPAObjects(imageData, hierarchy.getAnnotationObjects(), false, false, null);
+
+        var changes = NdpaTools.readNDPAChanges(imageData, hierarchy.getAnnotationObjects(), null, false, false, null);
+        assertTrue(changes.isEmpty());
+
+        // Another application adds an annotation, and saves the file with new ids
+        Path ndpaFile = Path.of(slide + ".ndpa");
+        List<NdpaAnnotation> annotations = new ArrayList<>();
+        try (InputStream stream = Files.newInputStream(ndpaFile);
+             NdpaReader reader = new NdpaReader(stream)) {
+            NdpaAnnotation ndpa;
+            while ((ndpa = reader.next()) != null)
+                annotations.add(ndpa);
+        }
+        annotations.add(0, new NdpaAnnotation(null, "New", "", "PIN", "#00FF00", "",
+                new double[] { 0 }, new double[] { 0 }, Double.NaN));
+        try (OutputStream stream = Files.newOutputStream(ndpaFile);
+             NdpaWriter writer = new NdpaWriter(stream, 0, 0)) {
+            for (NdpaAnnotation ndpa : annotations)
+                writer.writeAnnotation(ndpa);
+        }
+
+        changes = NdpaTools.readNDPAChanges(imageData, hierarchy.getAnnotationObjects(), null, false, false, null);
+        assertEquals(1, changes.getAdded().size());
+        assertEquals("New", changes.getAdded().get(0).getName());
+        assertTrue(changes.getRemoved().isEmpty());
+    }
+
+    private static void assertSameBounds(ROI expected, ROI actual) {
+        // Coordinates are rounded to whole nanometres in the file
+        double tolerance = 0.01;
+        assertEquals(expected.getBoundsX(), actual.getBoundsX(), tolerance);
+        assertEquals(expected.getBoundsY(), actual.getBoundsY(), tolerance);
+        assertEquals(expected.getBoundsWidth(), actual.getBoundsWidth(), tolerance);
+        assertEquals(expected.getBoundsHeight(), actual.getBoundsHeight(), tolerance);
+    }
+}
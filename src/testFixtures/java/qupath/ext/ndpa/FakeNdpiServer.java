@@ -0,0 +1,82 @@
+package qupath.ext.ndpa;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+
+import qupath.ext.ndpa.core.FakeNdpiWriter;
+import qupath.ext.ndpa.core.NdpiImageInfo;
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageChannel;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.PixelType;
+import qupath.lib.images.servers.TileRequest;
+
+/**
+ * Image server standing in for an NDPI slide, so that the NDPA import and export can run on an
+ * {@link qupath.lib.images.ImageData} without real slides or OpenSlide.
+ * <p>
+ * The server points to a fake NDPI file (see {@link FakeNdpiWriter}), so the NDPA file is found next to it
+ * and the offsets are read from its tags, and returns blank tiles.
+ */
+public class FakeNdpiServer extends AbstractTileableImageServer {
+
+    private final URI uri;
+    private final ImageServerMetadata metadata;
+
+    /**
+     * Create a server for a fake NDPI file, writing the file first.
+     *
+     * @param path the NDPI file to write
+     * @param imageInfo the size, pixel size and offsets of the image
+     * @throws IOException if the file could not be written
+     */
+    public FakeNdpiServer(Path path, NdpiImageInfo imageInfo) throws IOException {
+        FakeNdpiWriter.write(path, imageInfo);
+        this.uri = path.toUri();
+        this.metadata = new ImageServerMetadata.Builder()
+                .width((int) imageInfo.getWidth())
+                .height((int) imageInfo.getHeight())
+                .pixelSizeMicrons(imageInfo.getPixelWidthNm() / 1000, imageInfo.getPixelHeightNm() / 1000)
+                .rgb(true)
+                .pixelType(PixelType.UINT8)
+                .channels(ImageChannel.getDefaultRGBChannels())
+                .name(path.getFileName().toString())
+                .build();
+    }
+
+    @Override
+    public Collection<URI> getURIs() {
+        return List.of(uri);
+    }
+
+    @Override
+    public String getServerType() {
+        return "Fake NDPI";
+    }
+
+    @Override
+    public ImageServerMetadata getOriginalMetadata() {
+        return metadata;
+    }
+
+    @Override
+    protected BufferedImage readTile(TileRequest tileRequest) {
+        return new BufferedImage(tileRequest.getTileWidth(), tileRequest.getTileHeight(), BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Override
+    protected ServerBuilder<BufferedImage> createServerBuilder() {
+        // Not needed, the server is never serialized
+        return null;
+    }
+
+    @Override
+    protected String createID() {
+        return getClass().getName() + ": " + uri;
+    }
+}